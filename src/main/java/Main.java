@@ -1,3 +1,6 @@
+import com.brandontoner.jimagecollage.ChromaSubsampling;
+import com.brandontoner.jimagecollage.CollageManifest;
+import com.brandontoner.jimagecollage.CollageServer;
 import com.brandontoner.jimagecollage.CropFunction;
 import com.brandontoner.jimagecollage.DiffFunction;
 import com.brandontoner.jimagecollage.ImageCollage;
@@ -13,9 +16,25 @@ public enum Main {
     private static final Logger LOGGER = LogManager.getLogger(Main.class);
 
     public static void main(String[] args) throws IOException {
+        if (args.length > 0 && "serve".equals(args[0])) {
+            int port = args.length > 1 ? Integer.parseInt(args[1]) : 8080;
+            CollageServer server = new CollageServer(port, 2, Runtime.getRuntime().maxMemory() / 4);
+            server.start();
+            return;
+        }
+        if (args.length > 0 && "render".equals(args[0])) {
+            // render <manifest> <width> <output> [quality] [subsampling], without scoring sub images again
+            CollageManifest manifest = CollageManifest.read(Path.of(args[1]));
+            Path output = Path.of(args[3]);
+            int quality = args.length > 4 ? Integer.parseInt(args[4]) : 75;
+            ChromaSubsampling subsampling =
+                    args.length > 5 ? ChromaSubsampling.valueOf(args[5]) : ChromaSubsampling.HORIZONTAL_AND_VERTICAL;
+            manifest.render(Integer.parseInt(args[2]), output, quality, subsampling);
+            LOGGER.info("Generated picture at {}", output.toAbsolutePath());
+            return;
+        }
         ImageCollage collage = ImageCollage.builder()
-                                           .withDiffFunction(DiffFunction.ssim())
-                                           .withDiffFunction(DiffFunction.absRgb())
+                                           .withDiffFunction(DiffFunction.combined(1, 1, 0.5))
                                            .withTargetImage("D:\\target.jpg")
                                            .withSubImageDirectory("D:\\Users\\brand\\Pictures\\iCloud Photos\\Photos")
                                            .withOutputDirectory("D:\\output")
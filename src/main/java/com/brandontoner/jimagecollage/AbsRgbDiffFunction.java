@@ -1,13 +1,15 @@
 package com.brandontoner.jimagecollage;
 
 import javax.annotation.Nonnull;
-import java.nio.file.Path;
 
 /**
  * Computes the diff between two images as the sum of abs(r1 - r2) + abs(g1 - g2) + abs(b1 - b2) for each pixel.
  */
 class AbsRgbDiffFunction extends DiffFunction<AbsRgbDiffFunction.LongDiff> {
-    private static long diff(@Nonnull Image a, @Nonnull Image b) {
+    /**
+     * Gets the sum of abs(r1 - r2) + abs(g1 - g2) + abs(b1 - b2) over all pixels of two images of the same size.
+     */
+    static long diff(@Nonnull Image a, @Nonnull Image b) {
         assert a.getHeight() == b.getHeight();
         assert a.getWidth() == b.getWidth();
 
@@ -33,30 +35,27 @@ class AbsRgbDiffFunction extends DiffFunction<AbsRgbDiffFunction.LongDiff> {
 
     @Override
     @Nonnull
-    protected LongDiff diff(@Nonnull Path subImage, @Nonnull Image scaledImage, @Nonnull Image[] subSections) {
-        long[] output = new long[subSections.length];
+    protected LongDiff diff(@Nonnull Tile tile, @Nonnull Image[] subSections) {
+        Image scaledImage = tile.image();
+        double[] output = new double[subSections.length];
         for (int i = 0; i < subSections.length; i++) {
             output[i] = diff(subSections[i], scaledImage);
         }
-        return new LongDiff(subImage, output);
+        return new LongDiff(tile, output);
     }
 
-    static final class LongDiff extends SubImagesDiff<LongDiff> {
-        @Nonnull private final long[] diffs;
-
-        private LongDiff(@Nonnull Path path, @Nonnull long[] diffs) {
-            super(path);
-            this.diffs = diffs;
-        }
-
-        @Override
-        public boolean isBetter(int i, @Nonnull LongDiff other) {
-            return diffs[i] < other.diffs[i];
-        }
+    @Nonnull
+    @Override
+    String spec() {
+        return "absRgb";
+    }
 
-        @Override
-        public boolean isBetter(int i1, int i2) {
-            return diffs[i1] < diffs[i2];
+    /**
+     * Diff which holds the sum of absolute differences in each subsection. Sums are exact in doubles up to 2^53.
+     */
+    static final class LongDiff extends SubImagesDiff<LongDiff> {
+        private LongDiff(@Nonnull Tile tile, @Nonnull double[] diffs) {
+            super(tile, diffs);
         }
     }
 }
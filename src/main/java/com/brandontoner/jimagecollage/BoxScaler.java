@@ -0,0 +1,162 @@
+package com.brandontoner.jimagecollage;
+
+import javax.annotation.Nonnull;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.util.Arrays;
+
+/**
+ * Scales images by area averaging: each output pixel is the average of the input pixels it covers, weighted by how much
+ * of each input pixel it covers. This works for any ratio, and doesn't alias like sampling the nearest pixel does.
+ * <p>
+ * The filter is separable. Each input row is averaged horizontally as it is read, then added to the output rows it
+ * covers. Weights are the integer lengths of the overlaps, measured in units of 1 / (input size * output size), so sums
+ * are exact and each output channel is rounded once. Rows are read straight from the raster when the image has opaque
+ * 8 bit sRGB samples, which is what JPEGs decode to, without going through the color model for each pixel. Images with
+ * transparency are composited onto white.
+ * <p>
+ * Smaller sizes of a scaled image, such as a mip chain, can be made with {@link Image#downsample2x()}, which averages
+ * the scaled image exactly like scaling the input to the smaller size would, when sizes divide evenly.
+ */
+enum BoxScaler {
+    ;
+
+    /**
+     * Scales an image to the given size.
+     *
+     * @param input  image to scale
+     * @param width  width of the output
+     * @param height height of the output
+     * @return scaled image
+     * @throws IllegalArgumentException if width or height is not positive
+     */
+    @Nonnull
+    static Image scale(@Nonnull BufferedImage input, int width, int height) {
+        if (width < 1 || height < 1) {
+            throw new IllegalArgumentException("Size must be positive: " + width + "x" + height);
+        }
+        int inWidth = input.getWidth();
+        int inHeight = input.getHeight();
+        Weights columns = new Weights(inWidth, width);
+        Weights rows = new Weights(inHeight, height);
+        RowReader reader = RowReader.of(input);
+
+        long[] sums = new long[3 * width * height];
+        int[] row = new int[3 * inWidth];
+        int[] rowSums = new int[3 * width];
+        for (int y = 0; y < inHeight; y++) {
+            reader.read(y, row);
+
+            // horizontal pass, the weights of each output pixel add up to inWidth, so sums fit in an int
+            Arrays.fill(rowSums, 0);
+            for (int x = 0; x < inWidth; x++) {
+                int r = row[3 * x];
+                int g = row[3 * x + 1];
+                int b = row[3 * x + 2];
+                for (int k = columns.starts[x]; k < columns.starts[x + 1]; k++) {
+                    int out = 3 * columns.indices[k];
+                    int weight = columns.weights[k];
+                    rowSums[out] += weight * r;
+                    rowSums[out + 1] += weight * g;
+                    rowSums[out + 2] += weight * b;
+                }
+            }
+
+            // vertical pass
+            for (int k = rows.starts[y]; k < rows.starts[y + 1]; k++) {
+                int offset = 3 * width * rows.indices[k];
+                long weight = rows.weights[k];
+                for (int i = 0; i < rowSums.length; i++) {
+                    sums[offset + i] += weight * rowSums[i];
+                }
+            }
+        }
+
+        long area = (long) inWidth * inHeight;
+        int[] rgbArray = new int[width * height];
+        for (int p = 0; p < rgbArray.length; p++) {
+            int r = (int) ((sums[3 * p] + area / 2) / area);
+            int g = (int) ((sums[3 * p + 1] + area / 2) / area);
+            int b = (int) ((sums[3 * p + 2] + area / 2) / area);
+            rgbArray[p] = (r << 16) | (g << 8) | b;
+        }
+        return new Image(rgbArray, width, height);
+    }
+
+    /**
+     * Overlaps between input pixels and output pixels along one axis. Input pixel i covers [i * out, (i + 1) * out)
+     * and output pixel j covers [j * in, (j + 1) * in), so every overlap is an integer, and the overlaps of each output
+     * pixel add up to in.
+     */
+    private static final class Weights {
+        /** Overlaps of input pixel i are from starts[i] inclusive to starts[i + 1] exclusive. */
+        @Nonnull private final int[] starts;
+        /** Output pixel of each overlap. */
+        @Nonnull private final int[] indices;
+        /** Length of each overlap. */
+        @Nonnull private final int[] weights;
+
+        private Weights(int in, int out) {
+            starts = new int[in + 1];
+            // each input pixel overlaps at most out / in + 2 output pixels
+            int capacity = in + out + 1;
+            int[] indices = new int[capacity];
+            int[] weights = new int[capacity];
+            int count = 0;
+            for (int i = 0; i < in; i++) {
+                starts[i] = count;
+                long low = (long) i * out;
+                long high = low + out;
+                int j = (int) (low / in);
+                while (low < high) {
+                    long end = Math.min(high, (long) (j + 1) * in);
+                    indices[count] = j;
+                    weights[count] = (int) (end - low);
+                    count++;
+                    low = end;
+                    j++;
+                }
+            }
+            starts[in] = count;
+            this.indices = indices;
+            this.weights = weights;
+        }
+    }
+
+    /**
+     * Reads rows of an image as interleaved 8 bit red, green and blue samples.
+     */
+    private interface RowReader {
+        void read(int y, @Nonnull int[] rgb);
+
+        @Nonnull
+        static RowReader of(@Nonnull BufferedImage image) {
+            ColorModel colorModel = image.getColorModel();
+            Raster raster = image.getRaster();
+            int width = image.getWidth();
+            boolean eightBit = true;
+            for (int bits : colorModel.getComponentSize()) {
+                eightBit &= bits == 8;
+            }
+            if (eightBit && colorModel.getColorSpace().isCS_sRGB() && !colorModel.hasAlpha()
+                && raster.getNumBands() == 3) {
+                // bands are red, green and blue whatever order the samples are stored in
+                return (y, rgb) -> raster.getPixels(0, y, width, 1, rgb);
+            }
+            // anything else goes through the color model, compositing onto white
+            int[] argb = new int[width];
+            return (y, rgb) -> {
+                image.getRGB(0, y, width, 1, argb, 0, width);
+                for (int x = 0; x < width; x++) {
+                    int pixel = argb[x];
+                    int alpha = pixel >>> 24;
+                    int white = 255 * (255 - alpha);
+                    rgb[3 * x] = (((pixel >> 16) & 0xFF) * alpha + white + 127) / 255;
+                    rgb[3 * x + 1] = (((pixel >> 8) & 0xFF) * alpha + white + 127) / 255;
+                    rgb[3 * x + 2] = ((pixel & 0xFF) * alpha + white + 127) / 255;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.brandontoner.jimagecollage;
+
+/**
+ * How much color resolution is kept when writing a collage as JPEG, relative to brightness.
+ */
+public enum ChromaSubsampling {
+    /** 4:4:4, full color resolution. Largest files, sharpest color edges between sub images. */
+    NONE(1, 1),
+    /** 4:2:2, half the color resolution horizontally. */
+    HORIZONTAL(2, 1),
+    /** 4:2:0, half the color resolution in both directions. Smallest files, what most JPEG writers do. */
+    HORIZONTAL_AND_VERTICAL(2, 2);
+
+    private final int horizontal;
+    private final int vertical;
+
+    ChromaSubsampling(int horizontal, int vertical) {
+        this.horizontal = horizontal;
+        this.vertical = vertical;
+    }
+
+    /**
+     * Gets the number of brightness samples per color sample horizontally.
+     */
+    int horizontal() {
+        return horizontal;
+    }
+
+    /**
+     * Gets the number of brightness samples per color sample vertically.
+     */
+    int vertical() {
+        return vertical;
+    }
+}
@@ -0,0 +1,348 @@
+package com.brandontoner.jimagecollage;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.IntStream;
+
+/**
+ * Which sub image is placed where in a solved collage, so it can be rendered again, at another resolution, without
+ * scoring sub images again. Manifests are written as JSON:
+ * <pre>{@code
+ * {"version": 1, "gridWidth": 64, "gridHeight": 48, "subSectionWidth": 20, "subSectionHeight": 15,
+ *  "cropFunction": "CROP_FROM_MIDDLE",
+ *  "tiles": [{"cell": [0, 0, 1, 1], "path": "a.jpg", "cropWindow": [0, 120, 4000, 3000, false]}, ...]}
+ * }</pre>
+ * Cells are x, y, width and height in units of the grid. A tile's crop window is x, y, width, height and whether it is
+ * mirrored, in pixels of the sub image; tiles without one are cropped with the crop function, which is one of those
+ * created by {@link CropFunction}, or null if none of them. Subsections with no tile are left out, and rendered white.
+ *
+ * @see ImageCollage#manifest()
+ */
+@Immutable
+public final class CollageManifest {
+    private static final Logger LOGGER = LogManager.getLogger(CollageManifest.class);
+    private static final int VERSION = 1;
+    private final int gridWidth;
+    private final int gridHeight;
+    private final int subSectionWidth;
+    private final int subSectionHeight;
+    @CheckForNull private final CropFunction cropFunction;
+    @Nonnull private final List<Placement> placements;
+
+    /**
+     * A sub image placed in a block of cells.
+     *
+     * @param x          left of the block, in cells
+     * @param y          top of the block, in cells
+     * @param width      width of the block, in cells
+     * @param height     height of the block, in cells
+     * @param path       path of the sub image
+     * @param cropWindow region of the sub image which is drawn, or null if it is cropped by the crop function
+     */
+    record Placement(int x, int y, int width, int height, @Nonnull Path path, @CheckForNull CropWindow cropWindow) {
+    }
+
+    /**
+     * @param gridWidth        width of the grid, in cells
+     * @param gridHeight       height of the grid, in cells
+     * @param subSectionWidth  width of a cell when the sub images were scored, which gives its aspect ratio
+     * @param subSectionHeight height of a cell when the sub images were scored
+     * @param cropFunction     crop function of tiles without a crop window, or null if every tile has one
+     * @param placements       placed sub images
+     */
+    CollageManifest(int gridWidth, int gridHeight, int subSectionWidth, int subSectionHeight,
+                    @CheckForNull CropFunction cropFunction, @Nonnull List<Placement> placements) {
+        this.gridWidth = gridWidth;
+        this.gridHeight = gridHeight;
+        this.subSectionWidth = subSectionWidth;
+        this.subSectionHeight = subSectionHeight;
+        this.cropFunction = cropFunction;
+        this.placements = List.copyOf(placements);
+    }
+
+    /**
+     * Reads a manifest written by {@link CollageManifest#write(Path)}.
+     *
+     * @param path path of the manifest
+     * @return manifest
+     * @throws IOException              if the manifest cannot be read
+     * @throws IllegalArgumentException if the manifest is malformed
+     */
+    @Nonnull
+    public static CollageManifest read(@Nonnull Path path) throws IOException {
+        Object json = Json.parse(Files.readString(path, StandardCharsets.UTF_8));
+        try {
+            Map<?, ?> root = (Map<?, ?>) Objects.requireNonNull(json, "Manifest is null");
+            int version = intValue(root.get("version"));
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported manifest version " + version);
+            }
+            String cropFunction = (String) root.get("cropFunction");
+            List<Placement> placements = new ArrayList<>();
+            for (Object entry : (List<?>) root.get("tiles")) {
+                Map<?, ?> tile = (Map<?, ?>) entry;
+                List<?> cell = (List<?>) tile.get("cell");
+                List<?> window = (List<?>) tile.get("cropWindow");
+                placements.add(new Placement(intValue(cell.get(0)), intValue(cell.get(1)), intValue(cell.get(2)),
+                                             intValue(cell.get(3)), Path.of((String) tile.get("path")),
+                                             window == null ? null : new CropWindow(intValue(window.get(0)),
+                                                                                    intValue(window.get(1)),
+                                                                                    intValue(window.get(2)),
+                                                                                    intValue(window.get(3)),
+                                                                                    (Boolean) window.get(4))));
+            }
+            return new CollageManifest(intValue(root.get("gridWidth")), intValue(root.get("gridHeight")),
+                                       intValue(root.get("subSectionWidth")), intValue(root.get("subSectionHeight")),
+                                       cropFunction == null ? null : StandardCropFunction.valueOf(cropFunction),
+                                       placements);
+        } catch (ClassCastException | NullPointerException | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Malformed manifest " + path, e);
+        }
+    }
+
+    private static int intValue(@CheckForNull Object value) {
+        return ((Number) Objects.requireNonNull(value)).intValue();
+    }
+
+    /**
+     * Writes this manifest as JSON.
+     *
+     * @param path path to write to
+     * @throws IOException           if the manifest cannot be written
+     * @throws IllegalStateException if a tile has no crop window, and the crop function is not one of those created by
+     *                               {@link CropFunction}, so it couldn't be rendered from the manifest
+     */
+    public void write(@Nonnull Path path) throws IOException {
+        if (cropFunction != null && !(cropFunction instanceof StandardCropFunction)
+            && placements.stream().anyMatch(placement -> placement.cropWindow() == null)) {
+            throw new IllegalStateException("Crop function cannot be written to a manifest");
+        }
+        StringBuilder output = new StringBuilder();
+        output.append("{\"version\": ").append(VERSION)
+              .append(", \"gridWidth\": ").append(gridWidth)
+              .append(", \"gridHeight\": ").append(gridHeight)
+              .append(", \"subSectionWidth\": ").append(subSectionWidth)
+              .append(", \"subSectionHeight\": ").append(subSectionHeight)
+              .append(",\n \"cropFunction\": ")
+              .append(cropFunction instanceof StandardCropFunction standard ? Json.quote(standard.name()) : "null")
+              .append(",\n \"tiles\": [");
+        for (int i = 0; i < placements.size(); i++) {
+            Placement placement = placements.get(i);
+            output.append(i == 0 ? "\n  " : ",\n  ")
+                  .append("{\"cell\": [").append(placement.x()).append(", ").append(placement.y()).append(", ")
+                  .append(placement.width()).append(", ").append(placement.height())
+                  .append("], \"path\": ").append(Json.quote(placement.path().toString()));
+            CropWindow window = placement.cropWindow();
+            if (window != null) {
+                output.append(", \"cropWindow\": [").append(window.x()).append(", ").append(window.y()).append(", ")
+                      .append(window.width()).append(", ").append(window.height()).append(", ")
+                      .append(window.flipped()).append(']');
+            }
+            output.append('}');
+        }
+        output.append("\n]}\n");
+        Files.writeString(path, output, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Gets the width of the grid, in cells.
+     */
+    public int gridWidth() {
+        return gridWidth;
+    }
+
+    /**
+     * Gets the height of the grid, in cells.
+     */
+    public int gridHeight() {
+        return gridHeight;
+    }
+
+    /**
+     * Renders the collage at the resolution of its sub images, as large as fits in a {@link BufferedImage}.
+     *
+     * @return collage
+     */
+    @Nonnull
+    public BufferedImage render() {
+        return render(new MemoryBudget(Runtime.getRuntime().maxMemory() / 2));
+    }
+
+    /**
+     * Renders the collage at a given width. The height keeps the aspect ratio of the cells, and the size is rounded
+     * down to whole pixels per cell.
+     *
+     * @param width width of the collage in pixels
+     * @return collage
+     * @throws IllegalArgumentException if the width is less than one pixel per cell
+     */
+    @Nonnull
+    public BufferedImage render(int width) {
+        int cellWidth = width / gridWidth;
+        if (cellWidth < 1) {
+            throw new IllegalArgumentException("Width must be at least " + gridWidth + ": " + width);
+        }
+        int cellHeight = Math.max(1, (int) Math.round((double) cellWidth * subSectionHeight / subSectionWidth));
+        return render(new MemoryBudget(Runtime.getRuntime().maxMemory() / 2), cellWidth, cellHeight);
+    }
+
+    /**
+     * Renders the collage at a given width, and writes it as a JPEG with the same defaults as
+     * {@link ImageCollageBuilder}, quality 75 and 4:2:0 chroma subsampling.
+     *
+     * @param width  width of the collage in pixels
+     * @param output path to write to
+     * @throws IOException              if the collage cannot be written
+     * @throws IllegalArgumentException if the width is less than one pixel per cell
+     * @see CollageManifest#render(int, Path, int, ChromaSubsampling)
+     */
+    public void render(int width, @Nonnull Path output) throws IOException {
+        render(width, output, 75, ChromaSubsampling.HORIZONTAL_AND_VERTICAL);
+    }
+
+    /**
+     * Renders the collage at a given width, and writes it as a JPEG.
+     *
+     * @param width       width of the collage in pixels
+     * @param output      path to write to
+     * @param quality     JPEG quality from 1 to 100
+     * @param subsampling chroma subsampling
+     * @throws IOException              if the collage cannot be written
+     * @throws IllegalArgumentException if the width is less than one pixel per cell or quality is not from 1 to 100
+     * @see CollageManifest#render(int)
+     */
+    public void render(int width, @Nonnull Path output, int quality, @Nonnull ChromaSubsampling subsampling)
+            throws IOException {
+        // before rendering, so bad arguments fail fast
+        JpegEncoder jpegEncoder = new JpegEncoder(quality, subsampling);
+        BufferedImage image = render(width);
+        LOGGER.info("Writing image to {}", output);
+        jpegEncoder.write(image, output.toFile());
+    }
+
+    /**
+     * Renders the collage at the resolution of its sub images, as large as fits in a {@link BufferedImage}. The
+     * resolution is that of the first tile's cropped sub image, skipping sub images which have been deleted.
+     */
+    @Nonnull
+    BufferedImage render(@Nonnull MemoryBudget memoryBudget) {
+        for (Placement first : placements) {
+            if (Files.notExists(first.path())) {
+                continue;
+            }
+            BufferedImage bi = crop(Objects.requireNonNull(ImageUtils.read(first.path())), first);
+            int scale = getScale(bi.getWidth(), bi.getHeight());
+            return render(memoryBudget, bi.getWidth() / scale, bi.getHeight() / scale);
+        }
+        throw new IllegalStateException("No sub image of the collage exists");
+    }
+
+    /**
+     * Renders the collage. Sub images are loaded in parallel, each once however many times it is placed, with the
+     * memory of each reserved from the budget until its tiles have been drawn.
+     *
+     * @param cellWidth  width of a cell in pixels
+     * @param cellHeight height of a cell in pixels
+     */
+    @Nonnull
+    // the reservations are only held while drawing, never referenced
+    @SuppressWarnings("try")
+    BufferedImage render(@Nonnull MemoryBudget memoryBudget, int cellWidth, int cellHeight) {
+        LOGGER.info("Compiling images into collage");
+        BufferedImage output =
+                new BufferedImage(cellWidth * gridWidth, cellHeight * gridHeight, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2 = output.createGraphics();
+        g2.setBackground(Color.WHITE);
+        g2.clearRect(0, 0, output.getWidth(), output.getHeight());
+
+        // placements sorted by sub image, so each sub image is loaded once
+        int[] order = IntStream.range(0, placements.size())
+                               .boxed()
+                               .sorted(Comparator.comparing(i -> placements.get(i).path()))
+                               .mapToInt(Integer::intValue)
+                               .toArray();
+        int[] runs = IntStream.rangeClosed(0, order.length)
+                              .filter(k -> k == 0 || k == order.length
+                                           || !placements.get(order[k]).path()
+                                                         .equals(placements.get(order[k - 1]).path()))
+                              .toArray();
+        IntStream.range(0, runs.length - 1).parallel().forEach(run -> {
+            Path path = placements.get(order[runs[run]]).path();
+            try (MemoryBudget.Reservation ignored = memoryBudget.reserve(ImageUtils.estimateLoadedSize(path))) {
+                BufferedImage loaded;
+                try {
+                    loaded = ImageUtils.read(path);
+                } catch (UncheckedIOException e) {
+                    if (Files.exists(path)) {
+                        throw e;
+                    }
+                    // its tiles may still be cached from before it was deleted
+                    LOGGER.error("Cannot load {}, it has been deleted", path);
+                    return;
+                }
+                if (loaded == null) {
+                    LOGGER.error("Cannot load {}", path);
+                    return;
+                }
+                synchronized (g2) {
+                    for (int k = runs[run]; k < runs[run + 1]; k++) {
+                        Placement placement = placements.get(order[k]);
+                        BufferedImage image = crop(loaded, placement);
+                        int x = placement.x() * cellWidth;
+                        int y = placement.y() * cellHeight;
+                        int w = placement.width() * cellWidth;
+                        int h = placement.height() * cellHeight;
+                        CropWindow window = placement.cropWindow();
+                        if (window != null && window.flipped()) {
+                            g2.drawImage(image, x + w, y, -w, h, null);
+                        } else {
+                            g2.drawImage(image, x, y, w, h, null);
+                        }
+                    }
+                }
+            }
+        });
+        g2.dispose();
+        return output;
+    }
+
+    /**
+     * Crops a loaded sub image to the region used by a placement.
+     */
+    @Nonnull
+    private BufferedImage crop(@Nonnull BufferedImage loaded, @Nonnull Placement placement) {
+        CropWindow window = placement.cropWindow();
+        if (window != null) {
+            return window.crop(loaded);
+        }
+        if (cropFunction == null) {
+            throw new IllegalStateException("No crop function for " + placement.path());
+        }
+        return Objects.requireNonNull(cropFunction.crop(loaded, subSectionWidth, subSectionHeight));
+    }
+
+    private int getScale(long width, long height) {
+        for (int scale = 1; true; ++scale) {
+            if (Math.multiplyExact(width * gridWidth / scale, height * gridHeight / scale) < Integer.MAX_VALUE) {
+                return scale;
+            }
+        }
+    }
+}
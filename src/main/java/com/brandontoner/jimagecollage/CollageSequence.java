@@ -0,0 +1,21 @@
+package com.brandontoner.jimagecollage;
+
+import javax.annotation.Nonnull;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Collages of each frame of a sequence, such as the frames of a timelapse, built from one set of sub images.
+ *
+ * @see ImageCollageBuilder#buildSequence(List, double)
+ */
+public interface CollageSequence {
+    /**
+     * Starts computing the collages.
+     *
+     * @return future completed with the path of the collage of each frame, in the order of the frames
+     */
+    @Nonnull
+    CompletableFuture<List<Path>> start();
+}
@@ -0,0 +1,320 @@
+package com.brandontoner.jimagecollage;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Long running service which computes collages on request, so the cost of starting the JVM, warming up the JIT and
+ * loading the sub images is only paid once. The files in each library directory are listed once, with their size and
+ * modification time, so later jobs neither walk the directory nor read the attributes of its files again, and sub
+ * images are kept in a shared {@link TileCache}, validated against those attributes, so a job which uses the same
+ * library and subsection size as an earlier job only scores and renders. Files deleted since a library was listed are
+ * logged and skipped rather than failing the job, though a subsection may be left white if a deleted file's tiles were
+ * still cached, until the library is listed again with {@code rescan=true}.
+ * <p>
+ * The server only listens on the loopback address. At most {@code maxConcurrentJobs} jobs run at a time, and requests
+ * beyond that are rejected with 503 rather than waiting, so HTTP threads are never parked on a job and {@code /status}
+ * always answers. All jobs share one pool of worker threads and split the decode memory budget between them.
+ * <ul>
+ *     <li>{@code POST /collages?target=...&library=...} computes a collage and responds with its path, or with the
+ *     JPEG itself if {@code stream=true}. {@code library} may be repeated, and each may be a directory or a file.
+ *     Optional parameters are {@code subSections}, {@code horizontal}, {@code vertical}, {@code usages},
+ *     {@code diff} (absRgb, ssim, integerSsim, windowedSsim, l2, lab, labCie94 or combined), {@code crop} (middle
+ *     or reject), {@code output}, and {@code rescan=true} to list library directories again after files were added
+ *     or removed.</li>
+ *     <li>{@code GET /status} responds with the number of running jobs, listed libraries, and tiles and bytes in the
+ *     cache.</li>
+ * </ul>
+ */
+@ThreadSafe
+public final class CollageServer implements AutoCloseable {
+    private static final Logger LOGGER = LogManager.getLogger(CollageServer.class);
+    /** Crop functions by name, shared by all jobs so their tiles share cache entries. */
+    private static final Map<String, CropFunction> CROP_FUNCTIONS =
+            Map.of("middle", CropFunction.cropFromMiddle(), "reject", CropFunction.rejectBadAspectRatio());
+    /** Diff functions by name. Each job gets its own instance, they cache data about a single master image. */
+    private static final Map<String, Supplier<DiffFunction<?>>> DIFF_FUNCTIONS =
+            Map.of("absRgb", DiffFunction::absRgb,
+                   "ssim", DiffFunction::ssim,
+                   "integerSsim", DiffFunction::integerSsim,
+                   "windowedSsim", DiffFunction::windowedSsim,
+                   "l2", DiffFunction::l2,
+                   "lab", DiffFunction::lab,
+                   "labCie94", DiffFunction::labCie94,
+                   "combined", () -> DiffFunction.combined(1, 1, 0.5));
+
+    /** Threads which parse requests and send responses, jobs themselves run on the worker pool. */
+    private static final int DISPATCH_THREADS = 4;
+
+    @Nonnull private final HttpServer server;
+    @Nonnull private final ExecutorService dispatch;
+    @Nonnull private final ForkJoinPool workers;
+    @Nonnull private final TileCache tileCache;
+    /** Image files in each library directory, by absolute path of the directory. */
+    @Nonnull private final Map<Path, List<SubImageFile>> libraries = new ConcurrentHashMap<>();
+    /** One permit per job which may run at once. */
+    @Nonnull private final Semaphore jobs;
+    private final int maxConcurrentJobs;
+    private final long decodeMemoryBudget;
+
+    /**
+     * Creates a server, which doesn't accept requests until it is started.
+     *
+     * @param port              port to listen on, or 0 for any free port
+     * @param maxConcurrentJobs maximum number of collages computed at once
+     * @param tileCacheBytes    capacity of the tile cache in bytes
+     * @throws IOException if the port cannot be bound
+     */
+    public CollageServer(int port, int maxConcurrentJobs, long tileCacheBytes) throws IOException {
+        if (maxConcurrentJobs < 1) {
+            throw new IllegalArgumentException("Max concurrent jobs must be positive: " + maxConcurrentJobs);
+        }
+        this.maxConcurrentJobs = maxConcurrentJobs;
+        tileCache = new TileCache(tileCacheBytes);
+        workers = new ForkJoinPool();
+        jobs = new Semaphore(maxConcurrentJobs);
+        dispatch = Executors.newFixedThreadPool(DISPATCH_THREADS);
+        decodeMemoryBudget = Runtime.getRuntime().maxMemory() / 2 / maxConcurrentJobs;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.setExecutor(dispatch);
+        server.createContext("/collages", this::handleCollage);
+        server.createContext("/status", this::handleStatus);
+    }
+
+    /**
+     * Starts accepting requests.
+     */
+    public void start() {
+        server.start();
+        LOGGER.info("Listening on {}", server.getAddress());
+    }
+
+    /**
+     * Gets the port the server is listening on.
+     */
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Gets the cache of tiles shared by all jobs.
+     */
+    @Nonnull
+    public TileCache tileCache() {
+        return tileCache;
+    }
+
+    /**
+     * Stops accepting requests, and waits for jobs which are running to finish.
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+        try {
+            // every permit is back once the running jobs have finished
+            if (!jobs.tryAcquire(maxConcurrentJobs, 1, TimeUnit.HOURS)) {
+                LOGGER.warn("Jobs did not finish");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        dispatch.shutdown();
+        workers.shutdown();
+    }
+
+    @Nonnull
+    private static Map<String, List<String>> parameters(@CheckForNull String query) {
+        Map<String, List<String>> output = new HashMap<>();
+        if (query == null || query.isEmpty()) {
+            return output;
+        }
+        for (String parameter : query.split("&")) {
+            int equals = parameter.indexOf('=');
+            String key = equals < 0 ? parameter : parameter.substring(0, equals);
+            String value = equals < 0 ? "" : parameter.substring(equals + 1);
+            output.computeIfAbsent(URLDecoder.decode(key, StandardCharsets.UTF_8), ignored -> new ArrayList<>())
+                  .add(URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return output;
+    }
+
+    @CheckForNull
+    private static String parameter(@Nonnull Map<String, List<String>> parameters, @Nonnull String name) {
+        List<String> values = parameters.get(name);
+        return values == null ? null : values.get(values.size() - 1);
+    }
+
+    @Nonnull
+    private static String requireParameter(@Nonnull Map<String, List<String>> parameters, @Nonnull String name) {
+        String value = parameter(parameters, name);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing parameter " + name);
+        }
+        return value;
+    }
+
+    private static int intParameter(@Nonnull Map<String, List<String>> parameters, @Nonnull String name,
+                                    int defaultValue) {
+        String value = parameter(parameters, name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    private static void respond(@Nonnull HttpExchange exchange, int status, @Nonnull String contentType,
+                                @Nonnull byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream outputStream = exchange.getResponseBody()) {
+            outputStream.write(body);
+        }
+    }
+
+    private static void respond(@Nonnull HttpExchange exchange, int status, @Nonnull String body) throws IOException {
+        respond(exchange, status, "text/plain; charset=utf-8", (body + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void handleStatus(@Nonnull HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, "Method not allowed");
+                return;
+            }
+            respond(exchange, 200, "jobs=" + (maxConcurrentJobs - jobs.availablePermits())
+                                   + "\nlibraries=" + libraries.size()
+                                   + "\ntiles=" + tileCache.size()
+                                   + "\nbytes=" + tileCache.bytes());
+        }
+    }
+
+    private void handleCollage(@Nonnull HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            try (exchange) {
+                respond(exchange, 405, "Method not allowed");
+            }
+            return;
+        }
+        if (!jobs.tryAcquire()) {
+            try (exchange) {
+                exchange.getResponseHeaders().set("Retry-After", "10");
+                respond(exchange, 503, "Too many jobs");
+            }
+            return;
+        }
+        Map<String, List<String>> parameters = parameters(exchange.getRequestURI().getRawQuery());
+        CompletableFuture<Path> output;
+        try {
+            output = build(parameters).start();
+        } catch (IllegalArgumentException | IOException | UncheckedIOException e) {
+            jobs.release();
+            try (exchange) {
+                respond(exchange, 400, String.valueOf(e.getMessage()));
+            }
+            return;
+        }
+        // respond once the job is done, rather than holding a dispatch thread while it runs
+        output.whenCompleteAsync((path, failure) -> {
+            jobs.release();
+            try (exchange) {
+                if (failure != null) {
+                    LOGGER.error("Collage failed", failure);
+                    respond(exchange, 500, String.valueOf(failure));
+                } else if (Boolean.parseBoolean(parameter(parameters, "stream"))) {
+                    respond(exchange, 200, "image/jpeg", Files.readAllBytes(path));
+                    Files.delete(path);
+                } else {
+                    respond(exchange, 200, path.toAbsolutePath().toString());
+                }
+            } catch (IOException e) {
+                LOGGER.warn("Cannot send response", e);
+            }
+        }, dispatch);
+    }
+
+    /**
+     * Gets the image files in a library directory, only walking it the first time or if asked to.
+     */
+    @Nonnull
+    private List<SubImageFile> library(@Nonnull Path directory, boolean rescan) {
+        Function<Path, List<SubImageFile>> scan = key -> {
+            try (Stream<SubImageFile> files = SubImageScanner.scan(List.of(key))) {
+                return files.toList();
+            }
+        };
+        Path key = directory.toAbsolutePath().normalize();
+        return rescan ? libraries.compute(key, (ignored, previous) -> scan.apply(key))
+                      : libraries.computeIfAbsent(key, scan);
+    }
+
+    @Nonnull
+    private ImageCollage build(@Nonnull Map<String, List<String>> parameters) throws IOException {
+        String diff = Objects.requireNonNullElse(parameter(parameters, "diff"), "absRgb");
+        Supplier<DiffFunction<?>> diffFunction = DIFF_FUNCTIONS.get(diff);
+        if (diffFunction == null) {
+            throw new IllegalArgumentException("Unknown diff function " + diff);
+        }
+        String crop = Objects.requireNonNullElse(parameter(parameters, "crop"), "middle");
+        CropFunction cropFunction = CROP_FUNCTIONS.get(crop);
+        if (cropFunction == null) {
+            throw new IllegalArgumentException("Unknown crop function " + crop);
+        }
+        int subSections = intParameter(parameters, "subSections", 64);
+        ImageCollageBuilderImpl<?> builderImpl = new ImageCollageBuilderImpl<>(diffFunction.get());
+        ImageCollageBuilder builder = builderImpl.withTargetImage(requireParameter(parameters, "target"))
+                                                 .withHorizontalSubSections(
+                                                         intParameter(parameters, "horizontal", subSections))
+                                                 .withVerticalSubSections(
+                                                         intParameter(parameters, "vertical", subSections))
+                                                 .withUsagePerImage(intParameter(parameters, "usages", 1))
+                                                 .withCropFunction(cropFunction)
+                                                 .withDecodeMemoryBudget(decodeMemoryBudget)
+                                                 .withTileCache(tileCache)
+                                                 .withExecutor(workers);
+        List<String> libraries = parameters.get("library");
+        if (libraries == null) {
+            throw new IllegalArgumentException("Missing parameter library");
+        }
+        boolean rescan = Boolean.parseBoolean(parameter(parameters, "rescan"));
+        for (String library : libraries) {
+            Path path = Path.of(library);
+            if (Files.isDirectory(path)) {
+                builderImpl.withSubImageFiles(library(path, rescan));
+            } else {
+                builder.withSubImage(path);
+            }
+        }
+        String output = parameter(parameters, "output");
+        if (output != null) {
+            builder.withOutputDirectory(output);
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,148 @@
+package com.brandontoner.jimagecollage;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Computes a weighted combination of the abs RGB diff, luma SSIM and color histogram distance between two images.
+ * Each metric is normalized to [0, 1] where 0 is a perfect match, and all per-pixel work for a pair of images is done
+ * in a single pass, so combining the metrics costs about the same as computing one of them.
+ */
+class CombinedDiffFunction extends DiffFunction<CostDiff> {
+    /** Number of bits of each color channel used for the histogram, 2 bits gives 4 * 4 * 4 = 64 bins. */
+    private static final int HISTOGRAM_BITS = 2;
+    private static final int HISTOGRAM_BINS = 1 << (3 * HISTOGRAM_BITS);
+
+    private final double absRgbWeight;
+    private final double ssimWeight;
+    private final double histogramWeight;
+    @Nonnull private final SubSectionCache<Stats[]> subSectionStats =
+            new SubSectionCache<>(CombinedDiffFunction::stats);
+
+    CombinedDiffFunction(double absRgbWeight, double ssimWeight, double histogramWeight) {
+        if (!(absRgbWeight >= 0) || !(ssimWeight >= 0) || !(histogramWeight >= 0)) {
+            throw new IllegalArgumentException("Weights must be non-negative");
+        }
+        if (absRgbWeight + ssimWeight + histogramWeight == 0) {
+            throw new IllegalArgumentException("At least one weight must be positive");
+        }
+        this.absRgbWeight = absRgbWeight;
+        this.ssimWeight = ssimWeight;
+        this.histogramWeight = histogramWeight;
+    }
+
+    private static float luma(int rgb) {
+        int r = (0x00ff0000 & rgb) >>> 16;
+        int g = (0x0000ff00 & rgb) >>> 8;
+        int b = (0x000000ff & rgb);
+        return 0.2126f * r + 0.7152f * g + 0.0722f * b;
+    }
+
+    private static int histogramBin(int rgb) {
+        int shift = 8 - HISTOGRAM_BITS;
+        int r = (rgb >>> (16 + shift)) & ((1 << HISTOGRAM_BITS) - 1);
+        int g = (rgb >>> (8 + shift)) & ((1 << HISTOGRAM_BITS) - 1);
+        int b = (rgb >>> shift) & ((1 << HISTOGRAM_BITS) - 1);
+        return (r << (2 * HISTOGRAM_BITS)) | (g << HISTOGRAM_BITS) | b;
+    }
+
+    @Nonnull
+    private static Stats[] stats(@Nonnull Image[] images) {
+        Stats[] output = new Stats[images.length];
+        for (int i = 0; i < images.length; i++) {
+            output[i] = new Stats(images[i]);
+        }
+        return output;
+    }
+
+    private double diff(@Nonnull Image subSection, @Nonnull Stats subSectionStats, @Nonnull Image scaledImage,
+                        @Nonnull Stats scaledStats) {
+        assert subSection.getHeight() == scaledImage.getHeight();
+        assert subSection.getWidth() == scaledImage.getWidth();
+
+        int[] rgbA = subSection.rgbArray();
+        int[] rgbB = scaledImage.rgbArray();
+        float[] lumasA = subSectionStats.lumas;
+        float[] lumasB = scaledStats.lumas;
+        long absSum = 0L;
+        double crossSum = 0;
+        for (int i = 0; i < rgbA.length; i++) {
+            int thisRGB = rgbA[i];
+            int otherRGB = rgbB[i];
+            absSum += Math.abs(((thisRGB >> 16) & 0xFF) - ((otherRGB >> 16) & 0xFF))
+                      + Math.abs(((thisRGB >> 8) & 0xFF) - ((otherRGB >> 8) & 0xFF))
+                      + Math.abs((thisRGB & 0xFF) - (otherRGB & 0xFF));
+            crossSum += lumasA[i] * lumasB[i];
+        }
+
+        int n = rgbA.length;
+        double cost = 0;
+        if (absRgbWeight != 0) {
+            cost += absRgbWeight * absSum / (3.0 * 255.0 * n);
+        }
+        if (ssimWeight != 0) {
+            double averageA = subSectionStats.average;
+            double averageB = scaledStats.average;
+            double covariance = crossSum / n - averageA * averageB;
+            double ssim = (2 * averageA * averageB + SsimDiffFunction.c1) * (2 * covariance + SsimDiffFunction.c2)
+                          / ((averageA * averageA + averageB * averageB + SsimDiffFunction.c1)
+                             * (subSectionStats.variance + scaledStats.variance + SsimDiffFunction.c2));
+            cost += ssimWeight * (1 - ssim) / 2;
+        }
+        if (histogramWeight != 0) {
+            int[] histogramA = subSectionStats.histogram;
+            int[] histogramB = scaledStats.histogram;
+            long distance = 0;
+            for (int i = 0; i < HISTOGRAM_BINS; i++) {
+                distance += Math.abs(histogramA[i] - histogramB[i]);
+            }
+            cost += histogramWeight * distance / (2.0 * n);
+        }
+        return cost;
+    }
+
+    @Nonnull
+    @Override
+    protected CostDiff diff(@Nonnull Tile tile, @Nonnull Image[] subSections) {
+        Image scaledImage = tile.image();
+        Stats[] stats = subSectionStats.get(subSections);
+        Stats scaledStats = new Stats(scaledImage);
+        double[] output = new double[subSections.length];
+        for (int i = 0; i < subSections.length; i++) {
+            output[i] = diff(subSections[i], stats[i], scaledImage, scaledStats);
+        }
+        return new CostDiff(tile, output);
+    }
+
+    @Nonnull
+    @Override
+    String spec() {
+        return "combined:" + absRgbWeight + "," + ssimWeight + "," + histogramWeight;
+    }
+
+    /**
+     * Statistics of a single image which don't depend on the image it is compared to.
+     */
+    private static final class Stats {
+        @Nonnull private final float[] lumas;
+        @Nonnull private final int[] histogram = new int[HISTOGRAM_BINS];
+        private final double average;
+        private final double variance;
+
+        private Stats(@Nonnull Image image) {
+            int[] rgbArray = image.rgbArray();
+            lumas = new float[rgbArray.length];
+            double sum = 0;
+            double sumOfSquares = 0;
+            for (int i = 0; i < rgbArray.length; i++) {
+                int rgb = rgbArray[i];
+                float luma = luma(rgb);
+                lumas[i] = luma;
+                sum += luma;
+                sumOfSquares += luma * luma;
+                histogram[histogramBin(rgb)]++;
+            }
+            average = sum / rgbArray.length;
+            variance = Math.max(0, sumOfSquares / rgbArray.length - average * average);
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package com.brandontoner.jimagecollage;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Diff which assigns a cost to each subsection, lower costs are better.
+ */
+final class CostDiff extends SubImagesDiff<CostDiff> {
+    CostDiff(@Nonnull Tile tile, @Nonnull double[] costs) {
+        super(tile, costs);
+    }
+}
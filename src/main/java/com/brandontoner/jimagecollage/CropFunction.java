@@ -12,12 +12,7 @@ public interface CropFunction {
      */
     @Nonnull
     static CropFunction rejectBadAspectRatio() {
-        return (input, width, height) -> {
-            double thisAspectRatio = (double) width / height;
-            double thatAspectRatio = (double) input.getWidth() / input.getHeight();
-            double ratio = thatAspectRatio / thisAspectRatio;
-            return 0.95 < ratio && ratio < 1.05 ? input : null;
-        };
+        return StandardCropFunction.REJECT_BAD_ASPECT_RATIO;
     }
 
     /**
@@ -26,17 +21,7 @@ public interface CropFunction {
      */
     @Nonnull
     static CropFunction cropFromMiddle() {
-        return (input, width, height) -> {
-            int inWidth = input.getWidth();
-            int inHeight = input.getHeight();
-            if (width * inHeight <= inWidth * height) {
-                int desiredWidth = width * inHeight / height;
-                return input.getSubimage((inWidth - desiredWidth) / 2, 0, desiredWidth, inHeight);
-            } else {
-                int desiredHeight = height * inWidth / width;
-                return input.getSubimage(0, (inHeight - desiredHeight) / 2, inWidth, desiredHeight);
-            }
-        };
+        return StandardCropFunction.CROP_FROM_MIDDLE;
     }
 
     /**
@@ -0,0 +1,113 @@
+package com.brandontoner.jimagecollage;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Cuts several tiles from each sub image, at evenly spaced offsets along the axis which has to be cropped, and
+ * optionally mirrored. Each tile is a separate candidate for the subsections, but all tiles of a sub image share its
+ * usage count. Greedy placement adds the tiles of a sub image together, placing whichever scores best in each
+ * subsection, so the tile placed doesn't depend on which was diffed first.
+ * <p>
+ * The sub image is scaled once, so that the largest region with the aspect ratio of the subsections is exactly the size
+ * of a subsection, and each tile is copied out of that scaled image. Adding variants costs a copy of the scaled pixels
+ * and a diff per variant, not another load or scale.
+ */
+@Immutable
+final class CropVariants {
+    private final int offsets;
+    private final boolean flips;
+
+    /**
+     * @param offsets number of crop offsets per sub image
+     * @param flips   whether to also use each crop mirrored horizontally
+     */
+    CropVariants(int offsets, boolean flips) {
+        if (offsets < 1) {
+            throw new IllegalArgumentException("Offsets must be positive: " + offsets);
+        }
+        this.offsets = offsets;
+        this.flips = flips;
+    }
+
+    int offsets() {
+        return offsets;
+    }
+
+    boolean flips() {
+        return flips;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof CropVariants other && offsets == other.offsets && flips == other.flips;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * offsets + Boolean.hashCode(flips);
+    }
+
+    /**
+     * Cuts tiles from a sub image.
+     *
+     * @param input  loaded sub image
+     * @param width  width of a subsection
+     * @param height height of a subsection
+     * @return tiles, and the regions of the sub image they were cut from
+     */
+    @Nonnull
+    List<TileCache.Entry> tiles(@Nonnull BufferedImage input, int width, int height) {
+        int inWidth = input.getWidth();
+        int inHeight = input.getHeight();
+        // crop horizontally if the input is wider than the subsections, otherwise vertically
+        boolean horizontal = (long) width * inHeight <= (long) inWidth * height;
+        int scaledWidth;
+        int scaledHeight;
+        int windowWidth;
+        int windowHeight;
+        if (horizontal) {
+            scaledHeight = height;
+            scaledWidth = Math.max(width, (int) Math.round((double) inWidth * height / inHeight));
+            windowHeight = inHeight;
+            windowWidth = Math.min(inWidth, (int) ((long) width * inHeight / height));
+        } else {
+            scaledWidth = width;
+            scaledHeight = Math.max(height, (int) Math.round((double) inHeight * width / inWidth));
+            windowWidth = inWidth;
+            windowHeight = Math.min(inHeight, (int) ((long) height * inWidth / width));
+        }
+        Image scaled = BoxScaler.scale(input, scaledWidth, scaledHeight);
+
+        int slack = horizontal ? scaledWidth - width : scaledHeight - height;
+        int inSlack = horizontal ? inWidth - windowWidth : inHeight - windowHeight;
+        Set<Integer> positions = new LinkedHashSet<>();
+        if (offsets == 1) {
+            positions.add(slack / 2);
+        } else {
+            for (int i = 0; i < offsets; i++) {
+                positions.add(slack * i / (offsets - 1));
+            }
+        }
+
+        List<TileCache.Entry> output = new ArrayList<>(positions.size() * (flips ? 2 : 1));
+        for (int position : positions) {
+            int inPosition = slack == 0 ? inSlack / 2 : (int) ((long) position * inSlack / slack);
+            Image tile = horizontal ? scaled.subImage(position, 0, width, height)
+                                    : scaled.subImage(0, position, width, height);
+            int x = horizontal ? inPosition : 0;
+            int y = horizontal ? 0 : inPosition;
+            output.add(new TileCache.Entry(tile, new CropWindow(x, y, windowWidth, windowHeight, false)));
+            if (flips) {
+                output.add(new TileCache.Entry(tile.flipHorizontal(),
+                                               new CropWindow(x, y, windowWidth, windowHeight, true)));
+            }
+        }
+        return output;
+    }
+}
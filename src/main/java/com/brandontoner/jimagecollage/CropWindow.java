@@ -0,0 +1,26 @@
+package com.brandontoner.jimagecollage;
+
+import javax.annotation.Nonnull;
+import java.awt.image.BufferedImage;
+
+/**
+ * Region of a loaded sub image which is used as a tile, optionally mirrored horizontally.
+ *
+ * @param x       left of the region
+ * @param y       top of the region
+ * @param width   width of the region
+ * @param height  height of the region
+ * @param flipped whether the region is mirrored horizontally
+ */
+record CropWindow(int x, int y, int width, int height, boolean flipped) {
+    /**
+     * Gets the region of an image. The region is not mirrored, callers should draw it mirrored if it is flipped.
+     *
+     * @param image loaded sub image
+     * @return region of the image, sharing the image's data
+     */
+    @Nonnull
+    BufferedImage crop(@Nonnull BufferedImage image) {
+        return image.getSubimage(x, y, width, height);
+    }
+}
@@ -0,0 +1,261 @@
+package com.brandontoner.jimagecollage;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.annotation.concurrent.ThreadSafe;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+/**
+ * Assigns tiles to subsections so that the result doesn't depend on the order diffs arrive in, or on how many threads
+ * computed them.
+ * <p>
+ * Candidates are ranked by a total order: score, then path, then crop window. Each subsection keeps its best
+ * candidates in that order, which is the same set however the diffs were interleaved. Once all diffs have been added,
+ * candidates from all subsections are sorted in the same order and placed greedily, skipping subsections which are
+ * already filled and sub images which have been used up.
+ * <p>
+ * Diffs are added without a shared lock: each thread adds to a partial set of best candidates which no other thread
+ * is adding to at the same time, and the partial sets are merged before the candidates are read. The best candidates
+ * of the merged partial sets are the best candidates of all diffs, since the order is total.
+ * <p>
+ * A subsection whose candidates have all been used up elsewhere is filled afterwards: the sub images which can still
+ * be used are loaded again, diffed against only the empty subsections, and assigned the same way, until every
+ * subsection is filled or no tile fits. Only the path and id of each sub image are kept for that, not its tiles, so
+ * memory doesn't grow with the size of the library, and sub images are only loaded again if a subsection is empty.
+ */
+@ThreadSafe
+final class DeterministicAssignment {
+    private static final Logger LOGGER = LogManager.getLogger(DeterministicAssignment.class);
+    /** Canonical order of candidates, best first. */
+    private static final Comparator<Candidate> ORDER =
+            Comparator.comparingDouble(Candidate::score)
+                      .thenComparing(candidate -> candidate.tile().path().toString())
+                      .thenComparing(candidate -> candidate.tile().cropWindow(),
+                                     Comparator.nullsFirst(Comparator.comparingInt(CropWindow::x)
+                                                                     .thenComparingInt(CropWindow::y)
+                                                                     .thenComparingInt(CropWindow::width)
+                                                                     .thenComparingInt(CropWindow::height)
+                                                                     .thenComparing(CropWindow::flipped)))
+                      .thenComparingInt(Candidate::subSection);
+
+    private final int subSections;
+    private final int candidatesPerSubSection;
+    /** Candidates of all partial sets which have been merged. */
+    @GuardedBy("this") @Nonnull private final TopCandidates merged;
+    /** Every partial set which hasn't been merged yet. */
+    @GuardedBy("this") @Nonnull private final List<TopCandidates> partials = new ArrayList<>();
+    /** Partial sets which no thread is adding to. */
+    @Nonnull private final ConcurrentLinkedDeque<TopCandidates> idle = new ConcurrentLinkedDeque<>();
+
+    /**
+     * @param subSections             number of subsections of the master image
+     * @param candidatesPerSubSection number of candidates kept for each subsection
+     */
+    DeterministicAssignment(int subSections, int candidatesPerSubSection) {
+        if (candidatesPerSubSection < 1) {
+            throw new IllegalArgumentException("Candidates must be positive: " + candidatesPerSubSection);
+        }
+        this.subSections = subSections;
+        this.candidatesPerSubSection = candidatesPerSubSection;
+        merged = new TopCandidates(subSections, candidatesPerSubSection);
+    }
+
+    /**
+     * Adds a diff as a candidate for every subsection it is among the best candidates for. May be called
+     * concurrently, but not concurrently with reading the candidates.
+     */
+    void add(@Nonnull SubImagesDiff<?> diff) {
+        TopCandidates partial = acquire();
+        try {
+            Tile tile = diff.tile();
+            partial.subImages.put(tile.path(), tile.subImage());
+            for (int i = 0; i < subSections; i++) {
+                partial.add(i, diff.score(i), tile);
+            }
+        } finally {
+            idle.addFirst(partial);
+        }
+    }
+
+    /**
+     * Adds a tile as a candidate for one subsection, if it is among the best candidates for it. Unlike
+     * {@link DeterministicAssignment#add(SubImagesDiff)}, the tile is not kept to fill empty subsections, so this is
+     * for merging candidates which were selected elsewhere. May be called concurrently, but not concurrently with
+     * reading the candidates.
+     */
+    void addCandidate(int subSection, double score, @Nonnull Tile tile) {
+        TopCandidates partial = acquire();
+        try {
+            partial.add(subSection, score, tile);
+        } finally {
+            idle.addFirst(partial);
+        }
+    }
+
+    /**
+     * Takes a partial set which no other thread is adding to, creating one if every partial set is in use. Partial
+     * sets are reused most recently released first, so there are about as many as threads adding at once.
+     */
+    @Nonnull
+    private TopCandidates acquire() {
+        TopCandidates partial = idle.pollFirst();
+        if (partial == null) {
+            partial = new TopCandidates(subSections, candidatesPerSubSection);
+            synchronized (this) {
+                partials.add(partial);
+            }
+        }
+        return partial;
+    }
+
+    /**
+     * Merges the partial sets which have been added to since the last merge.
+     */
+    @GuardedBy("this")
+    private void merge() {
+        for (TopCandidates partial : partials) {
+            merged.subImages.putAll(partial.subImages);
+            for (PriorityQueue<Candidate> queue : partial.candidates) {
+                for (Candidate candidate : queue) {
+                    merged.add(candidate.subSection(), candidate.score(), candidate.tile());
+                }
+            }
+        }
+        partials.clear();
+        idle.clear();
+    }
+
+    /**
+     * Gets the candidates kept for a subsection.
+     *
+     * @return candidates, best first
+     */
+    @Nonnull
+    synchronized List<Candidate> candidates(int subSection) {
+        merge();
+        List<Candidate> output = new ArrayList<>(merged.candidates.get(subSection));
+        output.sort(ORDER);
+        return output;
+    }
+
+    /**
+     * Places the best candidates in the master image, then fills the subsections which are still empty.
+     *
+     * @param masterImage  master image the diffs were computed against
+     * @param diffFunction diff function the diffs were computed with
+     * @param tileLoader   loads the tiles of a sub image again, to fill empty subsections
+     */
+    synchronized <T extends SubImagesDiff<T>> void assign(@Nonnull MasterImage<?> masterImage,
+                                                          @Nonnull DiffFunction<T> diffFunction,
+                                                          @Nonnull Function<Path, List<Tile>> tileLoader) {
+        merge();
+        Image[] subSections = masterImage.subSections();
+        place(masterImage, IntStream.range(0, subSections.length).toArray());
+        while (true) {
+            int[] empty = IntStream.range(0, subSections.length).filter(masterImage::isEmpty).toArray();
+            if (empty.length == 0) {
+                break;
+            }
+            List<Path> usable = merged.subImages.entrySet()
+                                         .stream()
+                                         .filter(entry -> masterImage.canUse(entry.getValue()))
+                                         .map(Map.Entry::getKey)
+                                         .toList();
+            if (usable.isEmpty()) {
+                break;
+            }
+            Image[] emptySubSections = IntStream.of(empty).mapToObj(i -> subSections[i]).toArray(Image[]::new);
+            DeterministicAssignment fill = new DeterministicAssignment(empty.length, candidatesPerSubSection);
+            DiffBatcher<T> batcher =
+                    new DiffBatcher<>(diffFunction, emptySubSections, diffs -> diffs.forEach(fill::add));
+            usable.parallelStream().forEach(path -> batcher.accept(tileLoader.apply(path)));
+            batcher.flush();
+            if (fill.place(masterImage, empty) == 0) {
+                break;
+            }
+        }
+        long empty = IntStream.range(0, subSections.length).filter(masterImage::isEmpty).count();
+        if (empty > 0) {
+            LOGGER.warn("{} of {} subsections have no sub image which can be placed in them", empty,
+                        subSections.length);
+        }
+    }
+
+    /**
+     * Places candidates best first.
+     *
+     * @param subSections subsection of the master image for each subsection of this assignment
+     * @return number of tiles placed
+     */
+    synchronized int place(@Nonnull MasterImage<?> masterImage, @Nonnull int[] subSections) {
+        merge();
+        List<Candidate> all = new ArrayList<>();
+        for (PriorityQueue<Candidate> queue : merged.candidates) {
+            all.addAll(queue);
+        }
+        all.sort(ORDER);
+        int placed = 0;
+        for (Candidate candidate : all) {
+            if (masterImage.place(subSections[candidate.subSection()], candidate.tile())) {
+                placed++;
+            }
+        }
+        return placed;
+    }
+
+    record Candidate(double score, @Nonnull Tile tile, int subSection) {
+    }
+
+    /**
+     * Best candidates of each subsection among the tiles added to it.
+     */
+    @NotThreadSafe
+    private static final class TopCandidates {
+        private final int candidatesPerSubSection;
+        /** Candidates of each subsection, worst first, so the worst can be replaced. */
+        @Nonnull private final List<PriorityQueue<Candidate>> candidates;
+        /** Id of every sub image which has been added, by path. */
+        @Nonnull private final Map<Path, Integer> subImages = new HashMap<>();
+
+        private TopCandidates(int subSections, int candidatesPerSubSection) {
+            this.candidatesPerSubSection = candidatesPerSubSection;
+            candidates = new ArrayList<>(subSections);
+            for (int i = 0; i < subSections; i++) {
+                candidates.add(new PriorityQueue<>(candidatesPerSubSection + 1, ORDER.reversed()));
+            }
+        }
+
+        private void add(int subSection, double score, @Nonnull Tile tile) {
+            if (Double.isNaN(score) || score == Double.POSITIVE_INFINITY) {
+                return;
+            }
+            PriorityQueue<Candidate> queue = candidates.get(subSection);
+            if (queue.size() < candidatesPerSubSection) {
+                queue.add(new Candidate(score, tile, subSection));
+                return;
+            }
+            if (score > queue.peek().score()) {
+                // most diffs are worse than every candidate, skip them without allocating
+                return;
+            }
+            Candidate candidate = new Candidate(score, tile, subSection);
+            if (ORDER.compare(candidate, queue.peek()) < 0) {
+                queue.poll();
+                queue.add(candidate);
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.brandontoner.jimagecollage;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+/**
+ * Groups tiles into batches of {@link DiffFunction#batchSize()} and diffs each batch. The batch is diffed
+ * on the thread which fills it, so batches are diffed concurrently if tiles are accepted concurrently.
+ * <p>
+ * The tiles of a sub image, such as its crop variants, are always diffed in the same batch, and their diffs are passed
+ * to the sink together, so a batch may hold a few more tiles than the batch size.
+ *
+ * @param <T> diff result type
+ */
+@ThreadSafe
+final class DiffBatcher<T extends SubImagesDiff<T>> {
+    @Nonnull private final DiffFunction<T> diffFunction;
+    @Nonnull private final Image[] subSections;
+    @Nonnull private final Consumer<? super List<T>> sink;
+    private final int batchSize;
+    @Nonnull private List<List<Tile>> groups;
+    private int size;
+
+    /**
+     * @param sink receives the diffs of the tiles of each sub image
+     */
+    DiffBatcher(@Nonnull DiffFunction<T> diffFunction,
+                @Nonnull Image[] subSections,
+                @Nonnull Consumer<? super List<T>> sink) {
+        this.diffFunction = Objects.requireNonNull(diffFunction);
+        this.subSections = Objects.requireNonNull(subSections);
+        this.sink = Objects.requireNonNull(sink);
+        this.batchSize = Math.max(1, diffFunction.batchSize());
+        groups = new ArrayList<>();
+    }
+
+    /**
+     * Adds the tiles of a sub image to the current batch, diffing the batch if it is full.
+     *
+     * @param tiles tiles of one sub image, scaled to the size of the subsections
+     */
+    void accept(@Nonnull List<Tile> tiles) {
+        if (tiles.isEmpty()) {
+            return;
+        }
+        if (batchSize == 1 || tiles.size() >= batchSize) {
+            sink.accept(diffFunction.diff(tiles, subSections));
+            return;
+        }
+        List<List<Tile>> full;
+        synchronized (this) {
+            groups.add(tiles);
+            size += tiles.size();
+            if (size < batchSize) {
+                return;
+            }
+            full = groups;
+            groups = new ArrayList<>();
+            size = 0;
+        }
+        process(full);
+    }
+
+    /**
+     * Diffs the current batch, even if it isn't full.
+     */
+    void flush() {
+        List<List<Tile>> remaining;
+        synchronized (this) {
+            remaining = groups;
+            groups = new ArrayList<>();
+            size = 0;
+        }
+        if (!remaining.isEmpty()) {
+            process(remaining);
+        }
+    }
+
+    private void process(@Nonnull List<List<Tile>> batch) {
+        List<Tile> tiles = new ArrayList<>();
+        for (List<Tile> group : batch) {
+            tiles.addAll(group);
+        }
+        List<T> diffs = diffFunction.diff(tiles, subSections);
+        int start = 0;
+        for (List<Tile> group : batch) {
+            sink.accept(diffs.subList(start, start + group.size()));
+            start += group.size();
+        }
+    }
+}
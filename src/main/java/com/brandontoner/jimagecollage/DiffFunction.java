@@ -1,14 +1,9 @@
 package com.brandontoner.jimagecollage;
 
-import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.Logger;
-
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
-import java.awt.Color;
-import java.awt.Graphics2D;
-import java.awt.image.BufferedImage;
-import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Computes differences between images.
@@ -16,8 +11,6 @@ import java.nio.file.Path;
  * @param <T> diff result type
  */
 public abstract class DiffFunction<T extends SubImagesDiff<T>> {
-    private static final Logger LOGGER = LogManager.getLogger(DiffFunction.class);
-
     /**
      * Gets a diff function which computes the diff between two images as the sum of abs(r1 - r2) + abs(g1 - g2) +
      * abs(b1 - b2) for each pixel.
@@ -35,38 +28,171 @@ public abstract class DiffFunction<T extends SubImagesDiff<T>> {
         return new SsimDiffFunction();
     }
 
+    /**
+     * Gets a diff function which computes the same structural similarity (SSIM) as {@link DiffFunction#ssim()}, but
+     * from 8 bit lumas with exact integer sums, so results are reproducible and lumas take a quarter of the memory.
+     */
     @Nonnull
-    private static BufferedImage scale(BufferedImage bi, int w, int h) {
-        BufferedImage resizedImg = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
-        Graphics2D g2 = resizedImg.createGraphics();
-        g2.setBackground(Color.WHITE);
-        g2.clearRect(0, 0, w, h);
-        g2.drawImage(bi, 0, 0, w, h, null);
-        g2.dispose();
-        return resizedImg;
+    public static DiffFunction<?> integerSsim() {
+        return new IntegerSsimDiffFunction();
     }
 
-    @CheckForNull
-    final T diff(@Nonnull MasterImage<T> masterImage, @Nonnull Path subImage, @Nonnull CropFunction cropFunction) {
-        BufferedImage bi = ImageUtils.read(subImage);
-        if (bi == null) {
-            LOGGER.error("Cannot load {}", subImage);
-            return null;
-        }
-        int subSectionWidth = masterImage.subSectionWidth();
-        int subSectionHeight = masterImage.subSectionHeight();
-        bi = cropFunction.crop(bi, subSectionWidth, subSectionHeight);
-        if (bi == null) {
-            LOGGER.warn("File {} has bad aspect ratio", subImage);
-            return null;
+    /**
+     * Gets a diff function which computes the mean structural similarity (SSIM) of 8x8 windows of two images.
+     */
+    @Nonnull
+    public static DiffFunction<?> windowedSsim() {
+        return windowedSsim(8);
+    }
+
+    /**
+     * Gets a diff function which computes the mean structural similarity (SSIM) of square windows of two images.
+     * Windows overlap by half of their size, and are shrunk to fit images smaller than a window.
+     *
+     * @param windowSize width and height of each window
+     * @throws IllegalArgumentException if window size is not positive
+     */
+    @Nonnull
+    public static DiffFunction<?> windowedSsim(int windowSize) {
+        return new WindowedSsimDiffFunction(windowSize);
+    }
+
+    /**
+     * Gets a diff function which computes the diff between two images as the sum of (r1 - r2)^2 + (g1 - g2)^2 +
+     * (b1 - b2)^2 for each pixel. Sub images are diffed in batches as a blocked matrix multiplication.
+     */
+    @Nonnull
+    public static DiffFunction<?> l2() {
+        return new L2DiffFunction();
+    }
+
+    /**
+     * Gets a diff function which computes the same diff as {@link DiffFunction#l2()}, but first projects images onto
+     * the top principal components of the subsections of the master image, and only computes exact diffs for the
+     * closest subsections in that space. A sub image can only be placed in its shortlisted subsections.
+     *
+     * @param dimensions number of principal components to project onto, 32 to 128 works well
+     * @param shortlist  number of subsections to compute exact diffs for, per sub image
+     * @throws IllegalArgumentException if dimensions or shortlist are not positive
+     */
+    @Nonnull
+    public static DiffFunction<?> pca(int dimensions, int shortlist) {
+        return new ProjectedL2DiffFunction(dimensions, shortlist, true);
+    }
+
+    /**
+     * Gets a diff function like {@link DiffFunction#pca(int, int)}, but using a random gaussian projection, which
+     * doesn't need to be fitted.
+     *
+     * @param dimensions number of dimensions to project onto
+     * @param shortlist  number of subsections to compute exact diffs for, per sub image
+     * @throws IllegalArgumentException if dimensions or shortlist are not positive
+     */
+    @Nonnull
+    public static DiffFunction<?> randomProjection(int dimensions, int shortlist) {
+        return new ProjectedL2DiffFunction(dimensions, shortlist, false);
+    }
+
+    /**
+     * Gets a diff function which computes a weighted sum of the abs RGB diff, the luma SSIM and the color histogram
+     * distance between two images. Each metric is normalized to [0, 1], and all of them are computed in a single pass
+     * over the pixels.
+     *
+     * @param absRgbWeight    weight of the abs RGB diff
+     * @param ssimWeight      weight of the SSIM
+     * @param histogramWeight weight of the color histogram distance
+     * @throws IllegalArgumentException if any weight is negative, or all weights are zero
+     */
+    @Nonnull
+    public static DiffFunction<?> combined(double absRgbWeight, double ssimWeight, double histogramWeight) {
+        return new CombinedDiffFunction(absRgbWeight, ssimWeight, histogramWeight);
+    }
+
+    /**
+     * Gets a diff function which computes the diff between two images as the sum of the CIE76 color difference (delta
+     * E) of each pixel, the distance between the colors in CIE L*a*b*. Unlike sRGB, distances in Lab roughly match how
+     * different colors look. Images are converted to Lab once, with lookup tables, so this is about as fast as
+     * {@link DiffFunction#absRgb()}.
+     */
+    @Nonnull
+    public static DiffFunction<?> lab() {
+        return new LabDiffFunction(false);
+    }
+
+    /**
+     * Gets a diff function like {@link DiffFunction#lab()}, but with the CIE94 color difference, which is more
+     * tolerant of chroma and hue differences in saturated colors of the master image, as the eye is.
+     */
+    @Nonnull
+    public static DiffFunction<?> labCie94() {
+        return new LabDiffFunction(true);
+    }
+
+    /**
+     * Recreates a diff function from its {@link DiffFunction#spec()}.
+     *
+     * @param spec name of the diff function, followed by its parameters after a colon, separated by commas
+     * @return diff function
+     * @throws IllegalArgumentException if the spec is not recognized
+     */
+    @Nonnull
+    static DiffFunction<?> fromSpec(@Nonnull String spec) {
+        String[] parts = spec.split("[:,]");
+        try {
+            return switch (parts[0]) {
+                case "absRgb" -> absRgb();
+                case "ssim" -> ssim();
+                case "integerSsim" -> integerSsim();
+                case "windowedSsim" -> windowedSsim(Integer.parseInt(parts[1]));
+                case "l2" -> l2();
+                case "lab" -> lab();
+                case "labCie94" -> labCie94();
+                case "pca" -> pca(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+                case "randomProjection" -> randomProjection(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+                case "combined" -> combined(Double.parseDouble(parts[1]), Double.parseDouble(parts[2]),
+                                            Double.parseDouble(parts[3]));
+                default -> throw new IllegalArgumentException("Unknown diff function " + spec);
+            };
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Missing parameters in " + spec, e);
         }
+    }
+
+    /**
+     * Gets a description of this diff function, which {@link DiffFunction#fromSpec(String)} turns back into an
+     * equivalent diff function, so it can be recreated in another process.
+     *
+     * @return spec, or null if this diff function cannot be recreated
+     */
+    @CheckForNull
+    String spec() {
+        return null;
+    }
 
-        BufferedImage scaled = scale(bi, subSectionWidth, subSectionHeight);
-        Image scaledImage = new Image(scaled);
-        Image[] subSections = masterImage.subSections();
-        return diff(subImage, scaledImage, subSections);
+    /**
+     * Gets the number of tiles this diff function would like to be given at once by
+     * {@link DiffFunction#diff(List, Image[])}. Defaults to 1.
+     */
+    int batchSize() {
+        return 1;
+    }
+
+    /**
+     * Diffs a batch of tiles against all subsections. By default diffs each tile separately.
+     *
+     * @param tiles       tiles, scaled to the size of the subsections
+     * @param subSections subsections of the master image
+     * @return diffs, in the same order as the tiles
+     */
+    @Nonnull
+    List<T> diff(@Nonnull List<Tile> tiles, @Nonnull Image[] subSections) {
+        List<T> output = new ArrayList<>(tiles.size());
+        for (Tile tile : tiles) {
+            output.add(diff(tile, subSections));
+        }
+        return output;
     }
 
     @Nonnull
-    abstract T diff(@Nonnull Path subImage, Image scaledImage, Image[] subSections);
+    abstract T diff(@Nonnull Tile tile, @Nonnull Image[] subSections);
 }
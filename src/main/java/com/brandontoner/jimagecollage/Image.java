@@ -17,7 +17,12 @@ final class Image {
         rgbArray = read.getRGB(0, 0, width, height, null, 0, width);
     }
 
-    private Image(@Nonnull int[] rgbArray, int width, int height) {
+    /**
+     * @param rgbArray pixels in rows, as 0xRRGGBB, which must not be modified afterwards
+     * @param width    width of the image
+     * @param height   height of the image
+     */
+    Image(@Nonnull int[] rgbArray, int width, int height) {
         this.rgbArray = rgbArray;
         this.width = width;
         this.height = height;
@@ -36,6 +41,48 @@ final class Image {
         return new Image(array, width, height);
     }
 
+    /**
+     * Gets a copy of this image mirrored horizontally.
+     */
+    @Nonnull
+    Image flipHorizontal() {
+        int[] array = new int[rgbArray.length];
+        for (int y = 0; y < height; ++y) {
+            int row = y * width;
+            for (int x = 0; x < width; ++x) {
+                array[row + x] = rgbArray[row + width - 1 - x];
+            }
+        }
+        return new Image(array, width, height);
+    }
+
+    /**
+     * Gets a copy of this image at half the width and height, each pixel being the average of a 2x2 block.
+     */
+    @Nonnull
+    Image downsample2x() {
+        int outWidth = width / 2;
+        int outHeight = height / 2;
+        int[] array = new int[outWidth * outHeight];
+        for (int y = 0; y < outHeight; ++y) {
+            for (int x = 0; x < outWidth; ++x) {
+                int i = 2 * y * width + 2 * x;
+                int p0 = rgbArray[i];
+                int p1 = rgbArray[i + 1];
+                int p2 = rgbArray[i + width];
+                int p3 = rgbArray[i + width + 1];
+                array[y * outWidth + x] = (average(p0, p1, p2, p3, 16) << 16) | (average(p0, p1, p2, p3, 8) << 8)
+                                          | average(p0, p1, p2, p3, 0);
+            }
+        }
+        return new Image(array, outWidth, outHeight);
+    }
+
+    private static int average(int p0, int p1, int p2, int p3, int shift) {
+        return (((p0 >> shift) & 0xFF) + ((p1 >> shift) & 0xFF) + ((p2 >> shift) & 0xFF) + ((p3 >> shift) & 0xFF)
+                + 2) / 4;
+    }
+
     int getWidth() {
         return width;
     }
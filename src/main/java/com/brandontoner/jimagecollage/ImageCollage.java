@@ -1,8 +1,11 @@
 package com.brandontoner.jimagecollage;
 
 import javax.annotation.Nonnull;
+import java.awt.image.BufferedImage;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
 
 public interface ImageCollage {
     @Nonnull
@@ -17,4 +20,27 @@ public interface ImageCollage {
 
     @Nonnull
     CompletableFuture<Path> start();
+
+    /**
+     * Gets a publisher of low resolution previews of the collage while it is being computed, at most 1024 pixels wide
+     * and high unless there are more subsections than that, published at the interval set by
+     * {@link ImageCollageBuilder#withPreviewInterval(Duration)}. A final preview is published once all sub
+     * images have been placed, then the publisher completes, or completes exceptionally if the collage fails. Previews
+     * are dropped for subscribers which haven't requested more.
+     *
+     * @return publisher of previews
+     */
+    @Nonnull
+    Flow.Publisher<BufferedImage> previews();
+
+    /**
+     * Gets the manifest of the collage, which records where each sub image is placed, so the collage can be rendered
+     * again at another resolution with {@link CollageManifest#render(int)}, without scoring sub images again. The
+     * future completes once all sub images have been placed, before the collage is rendered, or completes
+     * exceptionally if the collage fails.
+     *
+     * @return future of the manifest
+     */
+    @Nonnull
+    CompletableFuture<CollageManifest> manifest();
 }
@@ -4,8 +4,12 @@ import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import javax.annotation.concurrent.NotThreadSafe;
 import java.io.IOException;
+import java.nio.file.NotDirectoryException;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Builder for {@link ImageCollage}.
@@ -64,15 +68,17 @@ public interface ImageCollageBuilder {
 
     /**
      * Adds a directory containing the sub images that should be used to comprise the target image.  Multiple
-     * invocations will add sub images, not overwrite them.
+     * invocations will add sub images, not overwrite them. The directory is scanned in parallel when the collage is
+     * started, and only files which look like images are used.
      *
      * @param subImages directory containing the sub images
      * @return builder with sub images set
-     * @throws NullPointerException if path is null
-     * @throws IOException          if an I/O error is thrown when accessing the starting file.
+     * @throws NullPointerException  if path is null
+     * @throws NotDirectoryException if the path is not a directory
+     * @throws IOException           if an I/O error is thrown when accessing the directory.
      * @see ImageCollageBuilder#withSubImageDirectory(String)
      * @see ImageCollageBuilder#withSubImage(Path)
-     * @see ImageCollageBuilder#getSubImages()
+     * @see ImageCollageBuilder#getSubImageDirectories()
      */
     @Nonnull
     ImageCollageBuilder withSubImageDirectory(@Nonnull Path subImages) throws IOException;
@@ -92,13 +98,23 @@ public interface ImageCollageBuilder {
     ImageCollageBuilder withSubImage(@Nonnull Path path);
 
     /**
-     * Gets the collection of paths containing the sub images that should be used to comprise the target image.
+     * Gets the collection of paths containing the sub images that should be used to comprise the target image. This
+     * does not include the contents of directories added with {@link ImageCollageBuilder#withSubImageDirectory(Path)}.
      *
      * @return immutable collection of paths containing sub images
+     * @see ImageCollageBuilder#getSubImageDirectories()
      */
     @Nonnull
     Collection<Path> getSubImages();
 
+    /**
+     * Gets the directories which will be scanned for sub images when the collage is started.
+     *
+     * @return immutable collection of directories containing sub images
+     */
+    @Nonnull
+    Collection<Path> getSubImageDirectories();
+
     /**
      * Sets the directory in which to place the output file.
      *
@@ -183,7 +199,36 @@ public interface ImageCollageBuilder {
     int getVerticalSubSections();
 
     /**
-     * Sets the diff function to use to compare images with subsections of the master image.
+     * Makes the layout of subsections adapt to the detail in the target image. The horizontal and vertical subsections
+     * define the coarsest grid, then each subsection is split into four while its luma variance is above the threshold,
+     * up to the maximum depth. Flat areas get a few large subsections, detailed areas get many small ones.
+     *
+     * @param maxDepth          number of times a subsection may be split, 0 for a uniform grid
+     * @param varianceThreshold luma variance (luma from 0 to 255) above which a subsection is split
+     * @return builder with adaptive subsections set
+     * @throws IllegalArgumentException if max depth is negative
+     * @see ImageCollageBuilder#withSubSections(int)
+     */
+    @Nonnull
+    ImageCollageBuilder withAdaptiveSubSections(int maxDepth, double varianceThreshold);
+
+    /**
+     * Gets the number of times a subsection may be split into four.
+     *
+     * @return maximum depth, 0 for a uniform grid
+     */
+    int getAdaptiveDepth();
+
+    /**
+     * Gets the luma variance above which a subsection is split into four.
+     *
+     * @return variance threshold
+     */
+    double getAdaptiveVarianceThreshold();
+
+    /**
+     * Sets the diff function to use to compare images with subsections of the master image. This replaces any
+     * previously set diff function, use {@link DiffFunction#combined(double, double, double)} to use several metrics.
      *
      * @param diffFunction new diff function
      * @param <U>          new diff type
@@ -205,6 +250,22 @@ public interface ImageCollageBuilder {
      */
     int getUsagesPerImage();
 
+    /**
+     * Sets the minimum distance between two placements of the same image, measured between the centers of their
+     * subsections in subsections (in the smallest subsections if they are adaptive). Defaults to 0, no minimum.
+     *
+     * @param distance minimum distance
+     * @return builder with minimum reuse distance set
+     * @throws IllegalArgumentException if distance is negative
+     */
+    @Nonnull
+    ImageCollageBuilder withMinimumReuseDistance(double distance);
+
+    /**
+     * @return minimum distance between two placements of the same image, 0 if there is no minimum.
+     */
+    double getMinimumReuseDistance();
+
     /**
      * Sets the crop function used to get the images into the correct aspect ratio.
      *
@@ -220,6 +281,203 @@ public interface ImageCollageBuilder {
     @Nonnull
     CropFunction getCropFunction();
 
+    /**
+     * Cuts several tiles from each sub image, instead of the single tile chosen by the crop function. Tiles are cut
+     * from the largest region with the aspect ratio of the subsections, at evenly spaced offsets along the cropped axis,
+     * and optionally also mirrored. Each tile is matched separately, but all tiles of a sub image count towards its
+     * usages per image. Each sub image is still only loaded and scaled once.
+     *
+     * @param offsets number of crop offsets per sub image, or 0 to use the crop function
+     * @param flips   whether to also use each crop mirrored horizontally
+     * @return builder with crop variants set
+     * @throws IllegalArgumentException if offsets is negative
+     * @see ImageCollageBuilder#withCropFunction(CropFunction)
+     */
+    @Nonnull
+    ImageCollageBuilder withCropVariants(int offsets, boolean flips);
+
+    /**
+     * Gets the number of crop offsets per sub image.
+     *
+     * @return number of crop offsets, or 0 if the crop function is used
+     */
+    int getCropVariantOffsets();
+
+    /**
+     * Gets whether each crop is also used mirrored horizontally.
+     *
+     * @return true if crops are also mirrored
+     */
+    boolean getCropVariantFlips();
+
+    /**
+     * Sets how often previews are published to {@link ImageCollage#previews()} while the collage is computed. Defaults
+     * to null, only publishing the final preview.
+     *
+     * @param interval time between previews, or null to only publish the final preview
+     * @return builder with preview interval set
+     * @throws IllegalArgumentException if interval is not positive
+     */
+    @Nonnull
+    ImageCollageBuilder withPreviewInterval(@CheckForNull Duration interval);
+
+    /**
+     * Gets how often previews are published while the collage is computed.
+     *
+     * @return time between previews, or null if only the final preview is published
+     */
+    @CheckForNull
+    Duration getPreviewInterval();
+
+    /**
+     * Sets the maximum memory which may be used by images being decoded at once. Each image reserves an estimate of its
+     * decoded size, read from its header, and decoding waits while the budget is used up. Defaults to half of the
+     * maximum heap size.
+     *
+     * @param bytes memory budget in bytes
+     * @return builder with decode memory budget set
+     * @throws IllegalArgumentException if bytes is not positive
+     */
+    @Nonnull
+    ImageCollageBuilder withDecodeMemoryBudget(long bytes);
+
+    /**
+     * Gets the maximum memory which may be used by images being decoded at once.
+     *
+     * @return memory budget in bytes
+     */
+    long getDecodeMemoryBudget();
+
+    /**
+     * Makes the collage independent of the order sub images are diffed in, so the same inputs always give the same
+     * collage, whatever the number of threads or the order files are listed in. Each subsection keeps its best
+     * candidates, ties broken by path, and once all sub images have been diffed candidates are placed best first.
+     * Sub images are never displaced, and previews stay empty until all sub images have been diffed. A subsection whose
+     * candidates have all been used up elsewhere is filled by loading the sub images which can still be used again,
+     * so keep more candidates when sub images can only be used a few times. Defaults to 0, placing sub images as they
+     * are diffed.
+     *
+     * @param candidatesPerSubSection number of candidates kept for each subsection, or 0 to place sub images as they
+     *                                are diffed
+     * @return builder with deterministic assignment set
+     * @throws IllegalArgumentException if candidates per subsection is negative
+     */
+    @Nonnull
+    ImageCollageBuilder withDeterministicAssignment(int candidatesPerSubSection);
+
+    /**
+     * Gets the number of candidates kept for each subsection when the assignment is deterministic.
+     *
+     * @return candidates per subsection, or 0 if sub images are placed as they are diffed
+     */
+    int getDeterministicCandidates();
+
+    /**
+     * Sets the cache of cropped and scaled sub images. Collages which share a cache, and use the same sub images,
+     * subsection size and cropping, only load each sub image once. Defaults to null, no cache.
+     *
+     * @param tileCache cache of tiles, or null to always load sub images
+     * @return builder with tile cache set
+     */
+    @Nonnull
+    ImageCollageBuilder withTileCache(@CheckForNull TileCache tileCache);
+
+    /**
+     * Gets the cache of cropped and scaled sub images.
+     *
+     * @return cache of tiles, or null if sub images are always loaded
+     */
+    @CheckForNull
+    TileCache getTileCache();
+
+    /**
+     * Sets the pool the collage is computed in. Collages which share a pool share its threads, so several collages
+     * can be computed at once without oversubscribing the machine. Defaults to {@link ForkJoinPool#commonPool()}.
+     *
+     * @param executor pool to compute the collage in
+     * @return builder with executor set
+     */
+    @Nonnull
+    ImageCollageBuilder withExecutor(@Nonnull ForkJoinPool executor);
+
+    /**
+     * Gets the pool the collage is computed in.
+     *
+     * @return pool to compute the collage in
+     */
+    @Nonnull
+    ForkJoinPool getExecutor();
+
+    /**
+     * Sets the quality the collage is written with, as used by libjpeg: 100 is the best quality and largest file.
+     * Defaults to 75.
+     *
+     * @param quality quality from 1 to 100
+     * @return builder with JPEG quality set
+     * @throws IllegalArgumentException if quality is not from 1 to 100
+     */
+    @Nonnull
+    ImageCollageBuilder withJpegQuality(int quality);
+
+    /**
+     * Gets the quality the collage is written with.
+     *
+     * @return quality from 1 to 100
+     */
+    int getJpegQuality();
+
+    /**
+     * Sets how much color resolution is kept when the collage is written. Defaults to
+     * {@link ChromaSubsampling#HORIZONTAL_AND_VERTICAL}, 4:2:0.
+     *
+     * @param subsampling chroma subsampling
+     * @return builder with chroma subsampling set
+     */
+    @Nonnull
+    ImageCollageBuilder withChromaSubsampling(@Nonnull ChromaSubsampling subsampling);
+
+    /**
+     * Gets how much color resolution is kept when the collage is written.
+     *
+     * @return chroma subsampling
+     */
+    @Nonnull
+    ChromaSubsampling getChromaSubsampling();
+
+    /**
+     * Scores sub images in shards, on workers reached through a transport, rather than in this process. Sub images are
+     * split into shards, each worker loads its shard's sub images and returns only the best candidates of the shard
+     * for each subsection, and the candidates are merged and placed as with
+     * {@link ImageCollageBuilder#withDeterministicAssignment(int)}, keeping that many candidates, or 16 if it isn't
+     * set. The collage is the same as when computed in this process deterministically. Workers must be able to read the
+     * sub images at the same paths. The diff function must be one of those created by {@link DiffFunction}, and the
+     * crop function one of those created by {@link CropFunction}, unless crop variants are used. Previews show sub
+     * images scored by workers as white, and sequences are always computed in this process. Defaults to null, scoring
+     * in this process.
+     *
+     * @param transport transport to the workers, or null to score in this process
+     * @param shards    number of shards to split sub images into, usually the number of workers
+     * @return builder with shards set
+     * @throws IllegalArgumentException if shards is not positive
+     */
+    @Nonnull
+    ImageCollageBuilder withShards(@CheckForNull ShardTransport transport, int shards);
+
+    /**
+     * Gets the transport to the workers which score shards of sub images.
+     *
+     * @return transport, or null if sub images are scored in this process
+     */
+    @CheckForNull
+    ShardTransport getShardTransport();
+
+    /**
+     * Gets the number of shards sub images are split into.
+     *
+     * @return number of shards
+     */
+    int getShards();
+
     /**
      * Gets the diff function to use to compare images with subsections of the master image.
      *
@@ -235,4 +493,21 @@ public interface ImageCollageBuilder {
      */
     @Nonnull
     ImageCollage build();
+
+    /**
+     * Builds collages of a sequence of target images, such as the frames of a timelapse, with the settings of this
+     * builder. The target image is not used. Sub images are loaded once and kept in memory for all frames. Each frame
+     * starts from the collage of the previous frame: subsections whose target hasn't changed by more than the
+     * threshold keep their sub image, and sub images are only diffed against the subsections which have changed. This
+     * keeps the collages stable between frames, and makes each frame cost about as much as its changed subsections.
+     * Frames are compared to the target each subsection was last placed for, so slow changes still add up.
+     *
+     * @param frames          target images, in order
+     * @param changeThreshold mean absolute difference of a color channel (0 to 255) above which a subsection has
+     *                        changed, or 0 to place every subsection again, even those which haven't changed at all
+     * @return collage sequence
+     * @throws IllegalArgumentException if there are no frames or the threshold is negative
+     */
+    @Nonnull
+    CollageSequence buildSequence(@Nonnull List<Path> frames, double changeThreshold);
 }
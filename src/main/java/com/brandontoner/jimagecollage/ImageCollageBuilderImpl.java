@@ -5,12 +5,18 @@ import javax.annotation.Nonnull;
 import javax.annotation.concurrent.NotThreadSafe;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.NotDirectoryException;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Objects;
 import java.util.Set;
-import java.util.stream.Stream;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Implementation of {@link ImageCollageBuilder}.
@@ -19,13 +25,31 @@ import java.util.stream.Stream;
 final class ImageCollageBuilderImpl<T extends SubImagesDiff<T>> implements ImageCollageBuilder {
     /** Collection of sub image files. */
     @Nonnull private final Collection<Path> subImages = new HashSet<>();
+    /** Sub image files which have already been listed, with the attributes read when they were listed. */
+    @Nonnull private final Collection<SubImageFile> subImageFiles = new ArrayList<>();
+    /** Directories to scan for sub images when the collage is started. */
+    @Nonnull private final Collection<Path> subImageDirectories = new LinkedHashSet<>();
     private Path targetImage;
     private int horizontalSubSections;
     private int verticalSubSections;
     private Path outputDirectory;
+    private int adaptiveDepth;
+    private double adaptiveVarianceThreshold;
     private DiffFunction<T> diffFunction;
     private int usagesPerImage = 1;
+    private double minimumReuseDistance;
     private CropFunction cropFunction = CropFunction.rejectBadAspectRatio();
+    private int cropVariantOffsets;
+    private boolean cropVariantFlips;
+    private Duration previewInterval;
+    private long decodeMemoryBudget = Runtime.getRuntime().maxMemory() / 2;
+    private int deterministicCandidates;
+    private TileCache tileCache;
+    private ShardTransport shardTransport;
+    private int shards = 1;
+    private int jpegQuality = 75;
+    @Nonnull private ChromaSubsampling chromaSubsampling = ChromaSubsampling.HORIZONTAL_AND_VERTICAL;
+    @Nonnull private ForkJoinPool executor = ForkJoinPool.commonPool();
 
     ImageCollageBuilderImpl(@Nonnull DiffFunction<T> diffFunction) {
         this.diffFunction = Objects.requireNonNull(diffFunction);
@@ -47,9 +71,10 @@ final class ImageCollageBuilderImpl<T extends SubImagesDiff<T>> implements Image
     @Nonnull
     @Override
     public ImageCollageBuilder withSubImageDirectory(@Nonnull Path subImages) throws IOException {
-        try (Stream<Path> stream = Files.walk(subImages)) {
-            stream.filter(Files::isRegularFile).forEach(this::withSubImage);
+        if (!Files.readAttributes(subImages, BasicFileAttributes.class).isDirectory()) {
+            throw new NotDirectoryException(subImages.toString());
         }
+        subImageDirectories.add(subImages);
         return this;
     }
 
@@ -66,6 +91,34 @@ final class ImageCollageBuilderImpl<T extends SubImagesDiff<T>> implements Image
         return Set.copyOf(subImages);
     }
 
+    /**
+     * Adds sub image files which have already been listed, such as a directory listing kept between collages, so
+     * their attributes aren't read again. The tile cache is validated against the attributes read when the files were
+     * listed, and files which have been deleted since are skipped.
+     *
+     * @param files sub image files
+     * @return builder with sub image files added
+     */
+    @Nonnull
+    ImageCollageBuilderImpl<T> withSubImageFiles(@Nonnull Collection<SubImageFile> files) {
+        subImageFiles.addAll(files);
+        return this;
+    }
+
+    /**
+     * Gets the sub image files which have already been listed.
+     */
+    @Nonnull
+    List<SubImageFile> getSubImageFiles() {
+        return List.copyOf(subImageFiles);
+    }
+
+    @Nonnull
+    @Override
+    public Collection<Path> getSubImageDirectories() {
+        return List.copyOf(subImageDirectories);
+    }
+
     @Nonnull
     @Override
     public ImageCollageBuilder withOutputDirectory(@Nonnull Path path) {
@@ -103,6 +156,27 @@ final class ImageCollageBuilderImpl<T extends SubImagesDiff<T>> implements Image
         return verticalSubSections;
     }
 
+    @Nonnull
+    @Override
+    public ImageCollageBuilder withAdaptiveSubSections(int maxDepth, double varianceThreshold) {
+        if (maxDepth < 0) {
+            throw new IllegalArgumentException("Max depth must not be negative: " + maxDepth);
+        }
+        adaptiveDepth = maxDepth;
+        adaptiveVarianceThreshold = varianceThreshold;
+        return this;
+    }
+
+    @Override
+    public int getAdaptiveDepth() {
+        return adaptiveDepth;
+    }
+
+    @Override
+    public double getAdaptiveVarianceThreshold() {
+        return adaptiveVarianceThreshold;
+    }
+
     @Nonnull
     @Override
     public <U extends SubImagesDiff<U>> ImageCollageBuilder withDiffFunction(@Nonnull DiffFunction<U> diffFunction) {
@@ -125,6 +199,21 @@ final class ImageCollageBuilderImpl<T extends SubImagesDiff<T>> implements Image
         return usagesPerImage;
     }
 
+    @Nonnull
+    @Override
+    public ImageCollageBuilder withMinimumReuseDistance(double distance) {
+        if (!(distance >= 0)) {
+            throw new IllegalArgumentException("Minimum reuse distance must not be negative: " + distance);
+        }
+        minimumReuseDistance = distance;
+        return this;
+    }
+
+    @Override
+    public double getMinimumReuseDistance() {
+        return minimumReuseDistance;
+    }
+
     @Nonnull
     @Override
     public ImageCollageBuilder withCropFunction(@Nonnull CropFunction cropFunction) {
@@ -138,6 +227,149 @@ final class ImageCollageBuilderImpl<T extends SubImagesDiff<T>> implements Image
         return cropFunction;
     }
 
+    @Nonnull
+    @Override
+    public ImageCollageBuilder withCropVariants(int offsets, boolean flips) {
+        if (offsets < 0) {
+            throw new IllegalArgumentException("Offsets must not be negative: " + offsets);
+        }
+        cropVariantOffsets = offsets;
+        cropVariantFlips = flips;
+        return this;
+    }
+
+    @Override
+    public int getCropVariantOffsets() {
+        return cropVariantOffsets;
+    }
+
+    @Override
+    public boolean getCropVariantFlips() {
+        return cropVariantFlips;
+    }
+
+    @Nonnull
+    @Override
+    public ImageCollageBuilder withPreviewInterval(@CheckForNull Duration interval) {
+        if (interval != null && (interval.isNegative() || interval.isZero())) {
+            throw new IllegalArgumentException("Preview interval must be positive: " + interval);
+        }
+        previewInterval = interval;
+        return this;
+    }
+
+    @CheckForNull
+    @Override
+    public Duration getPreviewInterval() {
+        return previewInterval;
+    }
+
+    @Nonnull
+    @Override
+    public ImageCollageBuilder withDecodeMemoryBudget(long bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("Decode memory budget must be positive: " + bytes);
+        }
+        decodeMemoryBudget = bytes;
+        return this;
+    }
+
+    @Override
+    public long getDecodeMemoryBudget() {
+        return decodeMemoryBudget;
+    }
+
+    @Nonnull
+    @Override
+    public ImageCollageBuilder withDeterministicAssignment(int candidatesPerSubSection) {
+        if (candidatesPerSubSection < 0) {
+            throw new IllegalArgumentException("Candidates must not be negative: " + candidatesPerSubSection);
+        }
+        deterministicCandidates = candidatesPerSubSection;
+        return this;
+    }
+
+    @Override
+    public int getDeterministicCandidates() {
+        return deterministicCandidates;
+    }
+
+    @Nonnull
+    @Override
+    public ImageCollageBuilder withTileCache(@CheckForNull TileCache tileCache) {
+        this.tileCache = tileCache;
+        return this;
+    }
+
+    @CheckForNull
+    @Override
+    public TileCache getTileCache() {
+        return tileCache;
+    }
+
+    @Nonnull
+    @Override
+    public ImageCollageBuilder withExecutor(@Nonnull ForkJoinPool executor) {
+        this.executor = Objects.requireNonNull(executor);
+        return this;
+    }
+
+    @Nonnull
+    @Override
+    public ForkJoinPool getExecutor() {
+        return executor;
+    }
+
+    @Nonnull
+    @Override
+    public ImageCollageBuilder withJpegQuality(int quality) {
+        if (quality < 1 || quality > 100) {
+            throw new IllegalArgumentException("Quality must be from 1 to 100: " + quality);
+        }
+        jpegQuality = quality;
+        return this;
+    }
+
+    @Override
+    public int getJpegQuality() {
+        return jpegQuality;
+    }
+
+    @Nonnull
+    @Override
+    public ImageCollageBuilder withChromaSubsampling(@Nonnull ChromaSubsampling subsampling) {
+        chromaSubsampling = Objects.requireNonNull(subsampling);
+        return this;
+    }
+
+    @Nonnull
+    @Override
+    public ChromaSubsampling getChromaSubsampling() {
+        return chromaSubsampling;
+    }
+
+    @Nonnull
+    @Override
+    public ImageCollageBuilder withShards(@CheckForNull ShardTransport transport, int shards) {
+        if (shards < 1) {
+            throw new IllegalArgumentException("Shards must be positive: " + shards);
+        }
+        shardTransport = transport;
+        this.shards = shards;
+        return this;
+    }
+
+    @CheckForNull
+    @Override
+    public ShardTransport getShardTransport() {
+        return shardTransport;
+    }
+
+    @Override
+    public int getShards() {
+        return shards;
+    }
+
     @Nonnull
     @Override
     public DiffFunction<T> getDiffFunction() {
@@ -147,6 +379,27 @@ final class ImageCollageBuilderImpl<T extends SubImagesDiff<T>> implements Image
     @Nonnull
     @Override
     public ImageCollage build() {
+        Objects.requireNonNull(targetImage, "Target image is not set");
+        if (shardTransport != null) {
+            if (diffFunction.spec() == null) {
+                throw new IllegalArgumentException("Diff function cannot be recreated by shard workers");
+            }
+            if (cropVariantOffsets == 0 && !(cropFunction instanceof StandardCropFunction)) {
+                throw new IllegalArgumentException("Crop function cannot be recreated by shard workers");
+            }
+        }
         return new ImageCollageImpl<>(this);
     }
+
+    @Nonnull
+    @Override
+    public CollageSequence buildSequence(@Nonnull List<Path> frames, double changeThreshold) {
+        if (frames.isEmpty()) {
+            throw new IllegalArgumentException("No frames");
+        }
+        if (!(changeThreshold >= 0)) {
+            throw new IllegalArgumentException("Change threshold must not be negative: " + changeThreshold);
+        }
+        return new ImageCollageImpl<>(this).sequence(frames, changeThreshold);
+    }
 }
@@ -5,56 +5,490 @@ import org.apache.logging.log4j.Logger;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
-import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 final class ImageCollageImpl<T extends SubImagesDiff<T>> implements ImageCollage {
     @Nonnull private static final Logger LOGGER = LogManager.getLogger(ImageCollageImpl.class);
-    @Nonnull private final Path target;
+    /** Candidates kept for each subsection when scoring in shards, if deterministic assignment isn't set. */
+    private static final int DEFAULT_SHARD_CANDIDATES = 16;
+    /** Target image, or null if this is a sequence. */
+    @CheckForNull private final Path target;
     @Nonnull private final Set<Path> subImages;
+    /** Sub image files which have already been listed, their attributes aren't read again. */
+    @Nonnull private final List<SubImageFile> subImageFiles;
+    @Nonnull private final List<Path> subImageDirectories;
     @Nonnull private final DiffFunction<T> diffFunction;
     private final int subSectionsX;
     private final int subSectionsY;
+    private final int adaptiveDepth;
+    private final double adaptiveVarianceThreshold;
     @CheckForNull private final Path outputDirectory;
     private final int usagesPerImage;
+    private final double minimumReuseDistance;
     @Nonnull private final CropFunction cropFunction;
+    private final long decodeMemoryBudget;
+    @CheckForNull private final CropVariants cropVariants;
+    @CheckForNull private final Duration previewInterval;
+    private final int deterministicCandidates;
+    @CheckForNull private final TileCache tileCache;
+    @Nonnull private final ForkJoinPool executor;
+    @CheckForNull private final ShardTransport shardTransport;
+    private final int shards;
+    @Nonnull private final JpegEncoder jpegEncoder;
+    @Nonnull private final SubmissionPublisher<BufferedImage> previews = new SubmissionPublisher<>();
+    @Nonnull private final CompletableFuture<CollageManifest> manifest = new CompletableFuture<>();
 
-    ImageCollageImpl(@Nonnull ImageCollageBuilder builder) {
-        target = Objects.requireNonNull(builder.getTargetImage());
+    ImageCollageImpl(@Nonnull ImageCollageBuilderImpl<T> builder) {
+        target = builder.getTargetImage();
         outputDirectory = builder.getOutputDirectory();
         subImages = Set.copyOf(builder.getSubImages());
-        diffFunction = (DiffFunction<T>) Objects.requireNonNull(builder.getDiffFunction());
+        subImageFiles = builder.getSubImageFiles();
+        subImageDirectories = List.copyOf(builder.getSubImageDirectories());
+        diffFunction = Objects.requireNonNull(builder.getDiffFunction());
         subSectionsX = builder.getHorizontalSubSections();
         subSectionsY = builder.getVerticalSubSections();
+        adaptiveDepth = builder.getAdaptiveDepth();
+        adaptiveVarianceThreshold = builder.getAdaptiveVarianceThreshold();
         usagesPerImage = builder.getUsagesPerImage();
+        minimumReuseDistance = builder.getMinimumReuseDistance();
         cropFunction = builder.getCropFunction();
+        decodeMemoryBudget = builder.getDecodeMemoryBudget();
+        previewInterval = builder.getPreviewInterval();
+        deterministicCandidates = builder.getDeterministicCandidates();
+        tileCache = builder.getTileCache();
+        executor = builder.getExecutor();
+        shardTransport = builder.getShardTransport();
+        shards = builder.getShards();
+        jpegEncoder = new JpegEncoder(builder.getJpegQuality(), builder.getChromaSubsampling());
+        int cropVariantOffsets = builder.getCropVariantOffsets();
+        cropVariants = cropVariantOffsets == 0 ? null
+                                               : new CropVariants(cropVariantOffsets, builder.getCropVariantFlips());
     }
 
     @Nonnull
     @Override
     public CompletableFuture<Path> start() {
         CompletableFuture<Path> output = new CompletableFuture<>();
-        ForkJoinPool.commonPool().submit(() -> compute(output));
+        executor.submit(() -> compute(output));
         return output;
     }
 
+    @Nonnull
+    @Override
+    public Flow.Publisher<BufferedImage> previews() {
+        return previews;
+    }
+
+    @Nonnull
+    @Override
+    public CompletableFuture<CollageManifest> manifest() {
+        return manifest;
+    }
+
+    private void publishPreview(@Nonnull MasterImage<T> masterImage) {
+        Tile[] tiles;
+        synchronized (masterImage) {
+            tiles = masterImage.snapshot();
+        }
+        BufferedImage preview = masterImage.preview(tiles);
+        // drop the preview for subscribers which are behind, rather than blocking
+        previews.offer(preview, (subscriber, dropped) -> false);
+    }
+
+    /**
+     * Loads the tiles of every sub image, each sub image once, in parallel.
+     *
+     * @param consumer receives the tiles of each sub image which could be loaded
+     */
+    private void forEachSubImage(@Nonnull TileLoader tileLoader, @Nonnull Consumer<? super List<Tile>> consumer) {
+        // files can be added explicitly and be in several directories, only process each once
+        Set<Path> seen = ConcurrentHashMap.newKeySet();
+        Stream<SubImageFile> listed = Stream.concat(subImageFiles.stream(),
+                                                    subImages.stream().map(ImageCollageImpl::attributes)
+                                                             .filter(Objects::nonNull));
+        try (Stream<SubImageFile> files = Stream.concat(listed, SubImageScanner.scan(subImageDirectories))) {
+            files.parallel().filter(file -> seen.add(file.path())).forEach(file -> {
+                List<Tile> tiles = tileLoader.load(file);
+                if (!tiles.isEmpty()) {
+                    consumer.accept(tiles);
+                }
+            });
+        }
+    }
+
+    /**
+     * Reads the attributes of a sub image file which was added explicitly.
+     *
+     * @return file, or null if it doesn't exist
+     */
+    @CheckForNull
+    private static SubImageFile attributes(@Nonnull Path path) {
+        if (Files.notExists(path)) {
+            LOGGER.warn("Skipping {}, it does not exist", path);
+            return null;
+        }
+        return SubImageFile.of(path);
+    }
+
+    private void write(@Nonnull BufferedImage image, @Nonnull File file) throws IOException {
+        LOGGER.info("Writing image to {}", file);
+        jpegEncoder.write(image, file);
+    }
+
+    /**
+     * Gets collages of a sequence of frames, with the settings of this collage.
+     *
+     * @see ImageCollageBuilder#buildSequence(List, double)
+     */
+    @Nonnull
+    CollageSequence sequence(@Nonnull List<Path> frames, double changeThreshold) {
+        List<Path> copy = List.copyOf(frames);
+        return () -> {
+            CompletableFuture<List<Path>> output = new CompletableFuture<>();
+            executor.submit(() -> computeSequence(copy, changeThreshold, output));
+            return output;
+        };
+    }
+
+    private void computeSequence(@Nonnull List<Path> frames,
+                                 double changeThreshold,
+                                 @Nonnull CompletableFuture<? super List<Path>> completableFuture) {
+        try {
+            MemoryBudget memoryBudget = new MemoryBudget(decodeMemoryBudget);
+            PathTable pathTable = new PathTable();
+            Path directory;
+            if (outputDirectory == null) {
+                directory = Files.createTempDirectory("ImageCollage");
+            } else {
+                Files.createDirectories(outputDirectory);
+                directory = Files.createTempDirectory(outputDirectory, "ImageCollage");
+            }
+            // tiles of each sub image
+            List<List<Tile>> tiles = List.of();
+            MasterImage<CostDiff> previous = null;
+            // target of each subsection when its tile was placed
+            Image[] placedFor = null;
+            List<Path> output = new ArrayList<>(frames.size());
+            for (int frame = 0; frame < frames.size(); frame++) {
+                MasterImage<CostDiff> masterImage =
+                        new MasterImage<>(frames.get(frame), subSectionsX, subSectionsY, adaptiveDepth,
+                                          adaptiveVarianceThreshold, usagesPerImage, cropFunction,
+                                          minimumReuseDistance);
+                Image[] subSections = masterImage.subSections();
+                int[] changed;
+                if (previous == null || !previous.hasSameLayout(masterImage)) {
+                    // first frame, or the subsections have moved, start from scratch
+                    TileLoader tileLoader =
+                            new TileLoader(masterImage.subSectionWidth(), masterImage.subSectionHeight(), cropFunction,
+                                           cropVariants, memoryBudget, tileCache, pathTable);
+                    List<List<Tile>> loaded = Collections.synchronizedList(new ArrayList<>());
+                    forEachSubImage(tileLoader, loaded::add);
+                    tiles = loaded;
+                    placedFor = subSections.clone();
+                    changed = IntStream.range(0, subSections.length).toArray();
+                } else {
+                    List<Integer> stillChanged = new ArrayList<>();
+                    for (int i = 0; i < subSections.length; i++) {
+                        Tile tile = previous.tile(i);
+                        Image before = placedFor[i];
+                        double difference = (double) AbsRgbDiffFunction.diff(before, subSections[i])
+                                            / (3.0 * before.rgbArray().length);
+                        // a threshold of 0 places every subsection again, even those which are identical
+                        if (tile != null && changeThreshold > 0 && difference <= changeThreshold) {
+                            masterImage.lock(i, tile);
+                        } else {
+                            stillChanged.add(i);
+                            placedFor[i] = subSections[i];
+                        }
+                    }
+                    changed = stillChanged.stream().mapToInt(Integer::intValue).toArray();
+                }
+                LOGGER.info("Frame {}: placing {} of {} subsections", frame, changed.length, subSections.length);
+
+                if (changed.length > 0) {
+                    place(masterImage, tiles, changed);
+                }
+                File of = directory.resolve(String.format("frame%05d.jpg", frame)).toFile();
+                write(masterImage.compile(memoryBudget), of);
+                output.add(of.toPath());
+                previous = masterImage;
+            }
+            completableFuture.complete(output);
+        } catch (Throwable t) {
+            completableFuture.completeExceptionally(t);
+        }
+    }
+
+    /**
+     * Diffs tiles against some subsections of a master image, and places them in those subsections.
+     *
+     * @param tiles             tiles of each sub image
+     * @param subSectionIndices subsections to place tiles in, other subsections must already be locked
+     */
+    private void place(@Nonnull MasterImage<CostDiff> masterImage,
+                       @Nonnull List<List<Tile>> tiles,
+                       @Nonnull int[] subSectionIndices) {
+        Image[] subSections = masterImage.subSections();
+        Image[] changed = IntStream.of(subSectionIndices).mapToObj(i -> subSections[i]).toArray(Image[]::new);
+        DeterministicAssignment assignment =
+                deterministicCandidates == 0 ? null : new DeterministicAssignment(subSections.length,
+                                                                                  deterministicCandidates);
+        DiffBatcher<T> batcher = new DiffBatcher<>(diffFunction, changed, diffs -> {
+            // scores for all subsections, so diffs can be placed in the master image
+            List<CostDiff> expanded = expand(diffs, subSectionIndices, subSections.length);
+            if (assignment != null) {
+                expanded.forEach(assignment::add);
+                return;
+            }
+            synchronized (masterImage) {
+                masterImage.add(expanded);
+            }
+        });
+        tiles.parallelStream().forEach(batcher::accept);
+        batcher.flush();
+        if (assignment != null) {
+            // the tiles of every frame are already loaded
+            Map<Path, List<Tile>> tilesByPath =
+                    tiles.stream().collect(Collectors.toMap(group -> group.get(0).path(), group -> group));
+            synchronized (masterImage) {
+                assignment.assign(masterImage, diffFunction, tilesByPath::get);
+            }
+        }
+    }
+
+    /**
+     * Expands diffs against some subsections of a master image to scores for all of its subsections, with an infinite
+     * score for the other subsections, so the tiles are only placed in the subsections they were diffed against.
+     *
+     * @param subSectionIndices subsection of the master image for each subsection the diffs were computed against
+     */
+    @Nonnull
+    private static List<CostDiff> expand(@Nonnull List<? extends SubImagesDiff<?>> diffs,
+                                         @Nonnull int[] subSectionIndices,
+                                         int subSections) {
+        List<CostDiff> output = new ArrayList<>(diffs.size());
+        for (SubImagesDiff<?> diff : diffs) {
+            double[] scores = new double[subSections];
+            Arrays.fill(scores, Double.POSITIVE_INFINITY);
+            for (int k = 0; k < subSectionIndices.length; k++) {
+                scores[subSectionIndices[k]] = diff.score(k);
+            }
+            output.add(new CostDiff(diff.tile(), scores));
+        }
+        return output;
+    }
+
+    /**
+     * Fills the subsections which are still empty after greedy placement, such as subsections which were in no sub
+     * image's shortlist. Like {@link DeterministicAssignment#assign(MasterImage, DiffFunction, Function)}, the sub
+     * images which can still be used are loaded again and diffed against only the empty subsections, until every
+     * subsection is filled or no tile fits.
+     *
+     * @param subImages id of every sub image which was loaded, by path
+     */
+    private void fillEmpty(@Nonnull MasterImage<T> masterImage,
+                           @Nonnull Map<Path, Integer> subImages,
+                           @Nonnull TileLoader tileLoader) {
+        Image[] subSections = masterImage.subSections();
+        while (true) {
+            int[] empty;
+            List<Path> usable;
+            synchronized (masterImage) {
+                empty = IntStream.range(0, subSections.length).filter(masterImage::isEmpty).toArray();
+                usable = subImages.entrySet()
+                                  .stream()
+                                  .filter(entry -> masterImage.canUse(entry.getValue()))
+                                  .map(Map.Entry::getKey)
+                                  .toList();
+            }
+            if (empty.length == 0 || usable.isEmpty()) {
+                break;
+            }
+            Image[] emptySubSections = IntStream.of(empty).mapToObj(i -> subSections[i]).toArray(Image[]::new);
+            DiffBatcher<T> batcher = new DiffBatcher<>(diffFunction, emptySubSections, diffs -> {
+                // scores for all subsections, so only empty subsections are filled
+                List<CostDiff> expanded = expand(diffs, empty, subSections.length);
+                synchronized (masterImage) {
+                    masterImage.add(expanded);
+                }
+            });
+            usable.parallelStream().forEach(path -> batcher.accept(tileLoader.load(SubImageFile.of(path))));
+            batcher.flush();
+            long filled;
+            synchronized (masterImage) {
+                filled = IntStream.of(empty).filter(i -> !masterImage.isEmpty(i)).count();
+            }
+            LOGGER.info("Filled {} of {} empty subsections", filled, empty.length);
+            if (filled == 0) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Scores sub images on shard workers, and places their candidates. Like
+     * {@link DeterministicAssignment#assign(MasterImage, DiffFunction, Function)}, subsections which are still empty
+     * are filled in further rounds, which send only those subsections, and only the sub images which can still be
+     * used.
+     */
+    private void scoreShards(@Nonnull MasterImage<T> masterImage, @Nonnull ShardTransport transport) {
+        List<Path> paths;
+        Stream<Path> listed = Stream.concat(subImageFiles.stream().map(SubImageFile::path), subImages.stream());
+        try (Stream<Path> files = Stream.concat(listed,
+                                                SubImageScanner.scan(subImageDirectories).map(SubImageFile::path))) {
+            paths = files.distinct().sorted(Comparator.comparing(Path::toString)).toList();
+        }
+        PathTable pathTable = new PathTable();
+        int[] ids = paths.stream().mapToInt(pathTable::id).toArray();
+        // tiles are scaled by the workers, previews show them as white
+        int[] white = new int[masterImage.subSectionWidth() * masterImage.subSectionHeight()];
+        Arrays.fill(white, 0xFFFFFF);
+        Image blank = new Image(white, masterImage.subSectionWidth(), masterImage.subSectionHeight());
+        int candidates = deterministicCandidates == 0 ? DEFAULT_SHARD_CANDIDATES : deterministicCandidates;
+        Image[] subSections = masterImage.subSections();
+        int[] open = IntStream.range(0, subSections.length).toArray();
+        while (true) {
+            List<Path> usable = IntStream.range(0, paths.size())
+                                         .filter(i -> masterImage.canUse(ids[i]))
+                                         .mapToObj(paths::get)
+                                         .toList();
+            if (open.length == 0 || usable.isEmpty()) {
+                break;
+            }
+            Image[] sent = IntStream.of(open).mapToObj(i -> subSections[i]).toArray(Image[]::new);
+            DeterministicAssignment assignment = new DeterministicAssignment(open.length, candidates);
+            List<CompletableFuture<Void>> responses = new ArrayList<>(shards);
+            for (int shard = 0; shard < shards && shard < usable.size(); shard++) {
+                // round robin, so shards get a similar mix of directories
+                List<Path> shardPaths = new ArrayList<>();
+                for (int i = shard; i < usable.size(); i += shards) {
+                    shardPaths.add(usable.get(i));
+                }
+                ShardProtocol.Request request =
+                        new ShardProtocol.Request(Objects.requireNonNull(diffFunction.spec()),
+                                                  cropFunction instanceof StandardCropFunction standard ? standard
+                                                                                                        : null,
+                                                  cropVariants == null ? 0 : cropVariants.offsets(),
+                                                  cropVariants != null && cropVariants.flips(), candidates, sent,
+                                                  shardPaths);
+                responses.add(transport.send(ShardProtocol.encode(request)).thenAccept(response -> {
+                    for (ShardProtocol.Candidate candidate : ShardProtocol.decodeCandidates(response)) {
+                        Path path = shardPaths.get(candidate.path());
+                        assignment.addCandidate(candidate.subSection(), candidate.score(),
+                                                new Tile(path, pathTable.id(path), blank, candidate.cropWindow()));
+                    }
+                }));
+            }
+            CompletableFuture.allOf(responses.toArray(CompletableFuture[]::new)).join();
+            int placed;
+            synchronized (masterImage) {
+                placed = assignment.place(masterImage, open);
+            }
+            LOGGER.info("Placed {} sub images from {} shards in {} subsections", placed, responses.size(),
+                        open.length);
+            if (placed == 0) {
+                break;
+            }
+            open = IntStream.of(open).filter(masterImage::isEmpty).toArray();
+        }
+        if (open.length > 0) {
+            LOGGER.warn("{} of {} subsections have no sub image which can be placed in them", open.length,
+                        subSections.length);
+        }
+    }
+
     private void compute(@Nonnull CompletableFuture<? super Path> completableFuture) {
+        ScheduledExecutorService previewExecutor = null;
         try {
+            MemoryBudget memoryBudget = new MemoryBudget(decodeMemoryBudget);
             MasterImage<T> masterImage =
-                    new MasterImage<>(target, subSectionsX, subSectionsY, usagesPerImage, cropFunction);
-            subImages.parallelStream()
-                     .map(subImage -> diffFunction.diff(masterImage, subImage, cropFunction))
-                     .filter(Objects::nonNull)
-                     .forEachOrdered(masterImage::add);
+                    new MasterImage<>(Objects.requireNonNull(target), subSectionsX, subSectionsY, adaptiveDepth, adaptiveVarianceThreshold,
+                                      usagesPerImage, cropFunction, minimumReuseDistance);
+            TileLoader tileLoader = new TileLoader(masterImage.subSectionWidth(), masterImage.subSectionHeight(),
+                                                   cropFunction, cropVariants, memoryBudget, tileCache,
+                                                   new PathTable());
+            DeterministicAssignment assignment =
+                    deterministicCandidates == 0 ? null
+                                                 : new DeterministicAssignment(masterImage.subSections().length,
+                                                                               deterministicCandidates);
+            DiffBatcher<T> batcher = new DiffBatcher<>(diffFunction, masterImage.subSections(), diffs -> {
+                if (assignment != null) {
+                    diffs.forEach(assignment::add);
+                    return;
+                }
+                synchronized (masterImage) {
+                    masterImage.add(diffs);
+                }
+            });
+            if (previewInterval != null) {
+                previewExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "ImageCollage-preview");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                long nanos = previewInterval.toNanos();
+                previewExecutor.scheduleAtFixedRate(() -> publishPreview(masterImage), nanos, nanos,
+                                                    TimeUnit.NANOSECONDS);
+            }
+            if (shardTransport != null) {
+                scoreShards(masterImage, shardTransport);
+            } else {
+                // only kept in greedy mode, deterministic assignment keeps its own
+                Map<Path, Integer> loaded = new ConcurrentHashMap<>();
+                forEachSubImage(tileLoader, tiles -> {
+                    if (assignment == null) {
+                        loaded.putIfAbsent(tiles.get(0).path(), tiles.get(0).subImage());
+                    }
+                    batcher.accept(tiles);
+                });
+                batcher.flush();
+                if (assignment != null) {
+                    synchronized (masterImage) {
+                        assignment.assign(masterImage, diffFunction,
+                                          path -> tileLoader.load(SubImageFile.of(path)));
+                    }
+                } else {
+                    fillEmpty(masterImage, loaded, tileLoader);
+                }
+            }
+            if (previewExecutor != null) {
+                previewExecutor.shutdownNow();
+            }
+            publishPreview(masterImage);
+            previews.close();
 
-            BufferedImage output = masterImage.compile();
+            CollageManifest manifest;
+            synchronized (masterImage) {
+                manifest = masterImage.manifest();
+            }
+            this.manifest.complete(manifest);
+            BufferedImage output = manifest.render(memoryBudget);
 
             File of;
             if (outputDirectory == null) {
@@ -63,12 +497,17 @@ final class ImageCollageImpl<T extends SubImagesDiff<T>> implements ImageCollage
                 Files.createDirectories(outputDirectory);
                 of = Files.createTempFile(outputDirectory, "ImageCollage", ".jpg").toFile();
             }
-            LOGGER.info("Writing image to {}", of);
-            ImageIO.write(output, "JPEG", of);
+            write(output, of);
 
             completableFuture.complete(of.toPath());
         } catch (Throwable t) {
+            previews.closeExceptionally(t);
+            manifest.completeExceptionally(t);
             completableFuture.completeExceptionally(t);
+        } finally {
+            if (previewExecutor != null) {
+                previewExecutor.shutdownNow();
+            }
         }
     }
 }
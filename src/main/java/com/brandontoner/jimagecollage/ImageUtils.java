@@ -11,10 +11,13 @@ import org.apache.logging.log4j.Logger;
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.file.Path;
+import java.util.Iterator;
 import java.util.Optional;
 
 enum ImageUtils {
@@ -45,6 +48,34 @@ enum ImageUtils {
         }
     }
 
+    /**
+     * Estimates the memory needed to load an image from its dimensions, which are read from the header without decoding
+     * any pixels. Loading needs the decoded image, and possibly a rotated copy of it.
+     *
+     * @param p path of the image
+     * @return estimated number of bytes needed to load the image, or 0 if the image cannot be read
+     */
+    static long estimateLoadedSize(@Nonnull Path p) {
+        try (ImageInputStream in = ImageIO.createImageInputStream(p.toFile())) {
+            if (in == null) {
+                return 0;
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                return 0;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                return 2L * Integer.BYTES * reader.getWidth(0) * reader.getHeight(0);
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Cannot read dimensions of {}", p, e);
+            return 0;
+        }
+    }
 
     @Nonnull
     private static BufferedImage rotate(@Nonnull BufferedImage img, String orientation) {
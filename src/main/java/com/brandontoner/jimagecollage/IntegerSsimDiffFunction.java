@@ -0,0 +1,97 @@
+package com.brandontoner.jimagecollage;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Compares images using structural similarity (SSIM), like {@link SsimDiffFunction}, but in fixed point. Lumas are
+ * rounded to bytes with integer coefficients, and sums, sums of squares and cross sums are accumulated exactly in
+ * longs. Only the final SSIM formula is evaluated in doubles, so results are exact and don't depend on how the work is
+ * split between threads.
+ */
+class IntegerSsimDiffFunction extends DiffFunction<SsimDiffFunction.SsimDiff> {
+    /** Luma coefficients scaled by 256, Rec. 709 like {@link SsimDiffFunction}, summing to 256. */
+    private static final int RED = 54;
+    private static final int GREEN = 183;
+    private static final int BLUE = 19;
+
+    @Nonnull private final SubSectionCache<Lumas[]> subSectionLumas =
+            new SubSectionCache<>(IntegerSsimDiffFunction::lumas);
+
+    @Nonnull
+    private static Lumas[] lumas(@Nonnull Image[] images) {
+        Lumas[] output = new Lumas[images.length];
+        for (int i = 0; i < images.length; i++) {
+            output[i] = new Lumas(images[i]);
+        }
+        return output;
+    }
+
+    private static double ssim(@Nonnull Lumas a, @Nonnull Lumas b) {
+        byte[] lumasA = a.lumas;
+        byte[] lumasB = b.lumas;
+        assert lumasA.length == lumasB.length;
+        long crossSum = 0;
+        for (int i = 0; i < lumasA.length; i++) {
+            crossSum += (lumasA[i] & 0xFF) * (lumasB[i] & 0xFF);
+        }
+
+        // n^2 times the variances and covariance, which are exact integers
+        long n = lumasA.length;
+        long varianceA = n * a.sumOfSquares - a.sum * a.sum;
+        long varianceB = n * b.sumOfSquares - b.sum * b.sum;
+        long covariance = n * crossSum - a.sum * b.sum;
+
+        double nSquared = (double) n * n;
+        double averageA = (double) a.sum / n;
+        double averageB = (double) b.sum / n;
+        return (2 * averageA * averageB + SsimDiffFunction.c1) * (2 * covariance / nSquared + SsimDiffFunction.c2)
+               / ((averageA * averageA + averageB * averageB + SsimDiffFunction.c1)
+                  * ((varianceA + varianceB) / nSquared + SsimDiffFunction.c2));
+    }
+
+    @Nonnull
+    @Override
+    protected SsimDiffFunction.SsimDiff diff(@Nonnull Tile tile, @Nonnull Image[] subSections) {
+        Lumas[] lumas = subSectionLumas.get(subSections);
+        Lumas scaled = new Lumas(tile.image());
+        double[] output = new double[subSections.length];
+        for (int i = 0; i < subSections.length; i++) {
+            output[i] = ssim(lumas[i], scaled);
+        }
+        return new SsimDiffFunction.SsimDiff(tile, output);
+    }
+
+    @Nonnull
+    @Override
+    String spec() {
+        return "integerSsim";
+    }
+
+    /**
+     * Lumas of an image from 0 to 255, and their sum and sum of squares.
+     */
+    private static final class Lumas {
+        @Nonnull private final byte[] lumas;
+        private final long sum;
+        private final long sumOfSquares;
+
+        private Lumas(@Nonnull Image image) {
+            int[] rgbArray = image.rgbArray();
+            lumas = new byte[rgbArray.length];
+            long sum = 0;
+            long sumOfSquares = 0;
+            for (int i = 0; i < rgbArray.length; i++) {
+                int rgb = rgbArray[i];
+                int r = (rgb >> 16) & 0xFF;
+                int g = (rgb >> 8) & 0xFF;
+                int b = rgb & 0xFF;
+                int luma = (RED * r + GREEN * g + BLUE * b + 128) >> 8;
+                lumas[i] = (byte) luma;
+                sum += luma;
+                sumOfSquares += luma * luma;
+            }
+            this.sum = sum;
+            this.sumOfSquares = sumOfSquares;
+        }
+    }
+}
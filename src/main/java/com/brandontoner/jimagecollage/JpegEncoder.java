@@ -0,0 +1,520 @@
+package com.brandontoner.jimagecollage;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+import javax.imageio.plugins.jpeg.JPEGHuffmanTable;
+import javax.imageio.plugins.jpeg.JPEGQTable;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.stream.IntStream;
+
+/**
+ * Writes baseline JPEGs, encoding horizontal strips of the image in parallel.
+ * <p>
+ * The image is cut into strips of whole rows of MCUs (minimum coded units, the blocks of pixels which are encoded
+ * together), and the restart interval is set to the number of MCUs in a strip. A decoder resets its DC predictions at
+ * each restart marker, so each strip can be color converted, transformed, quantized and Huffman coded independently,
+ * on its own thread. The encoded strips are then written in order with a restart marker between each pair. The output
+ * is a single standard JPEG, which any decoder can read.
+ * <p>
+ * Quantization tables are the standard tables scaled by quality like libjpeg does, and Huffman tables are the
+ * standard tables, so no statistics have to be gathered before encoding.
+ */
+@Immutable
+final class JpegEncoder {
+    /** Largest width and height of a JPEG. */
+    static final int MAX_SIZE = 65535;
+    /** Natural index of each coefficient in zig-zag order. */
+    private static final int[] ZIGZAG = zigzag();
+    /** Scale factors of the AAN DCT. */
+    private static final double[] AAN_SCALE =
+            {1.0, 1.387039845, 1.306562965, 1.175875602, 1.0, 0.785694958, 0.541196100, 0.275899379};
+    private static final Huffman DC_LUMINANCE = new Huffman(JPEGHuffmanTable.StdDCLuminance);
+    private static final Huffman AC_LUMINANCE = new Huffman(JPEGHuffmanTable.StdACLuminance);
+    private static final Huffman DC_CHROMINANCE = new Huffman(JPEGHuffmanTable.StdDCChrominance);
+    private static final Huffman AC_CHROMINANCE = new Huffman(JPEGHuffmanTable.StdACChrominance);
+    /** Strips per thread, so threads which finish early can take another strip. */
+    private static final int STRIPS_PER_THREAD = 4;
+
+    @Nonnull private final ChromaSubsampling subsampling;
+    /** Quantization tables in natural order. */
+    @Nonnull private final int[] luminanceTable;
+    @Nonnull private final int[] chrominanceTable;
+    /** Reciprocals of the quantization tables, with the scale factors of the DCT folded in, in natural order. */
+    @Nonnull private final float[] luminanceDivisors;
+    @Nonnull private final float[] chrominanceDivisors;
+
+    /**
+     * @param quality     quality from 1 to 100, as used by libjpeg
+     * @param subsampling chroma subsampling
+     * @throws IllegalArgumentException if quality is not from 1 to 100
+     */
+    JpegEncoder(int quality, @Nonnull ChromaSubsampling subsampling) {
+        if (quality < 1 || quality > 100) {
+            throw new IllegalArgumentException("Quality must be from 1 to 100: " + quality);
+        }
+        this.subsampling = Objects.requireNonNull(subsampling);
+        float scale = (quality < 50 ? 5000f / quality : 200 - 2 * quality) / 100;
+        luminanceTable = JPEGQTable.K1Luminance.getScaledInstance(scale, true).getTable();
+        chrominanceTable = JPEGQTable.K2Chrominance.getScaledInstance(scale, true).getTable();
+        luminanceDivisors = divisors(luminanceTable);
+        chrominanceDivisors = divisors(chrominanceTable);
+    }
+
+    @Nonnull
+    private static int[] zigzag() {
+        int[] output = new int[64];
+        int k = 0;
+        for (int diagonal = 0; diagonal < 15; diagonal++) {
+            int low = Math.max(0, diagonal - 7);
+            int high = Math.min(7, diagonal);
+            for (int i = low; i <= high; i++) {
+                // odd diagonals run down and to the left, even diagonals up and to the right
+                int row = diagonal % 2 == 1 ? i : diagonal - i;
+                output[k++] = 8 * row + diagonal - row;
+            }
+        }
+        return output;
+    }
+
+    @Nonnull
+    private static float[] divisors(@Nonnull int[] table) {
+        float[] output = new float[64];
+        for (int row = 0; row < 8; row++) {
+            for (int column = 0; column < 8; column++) {
+                output[8 * row + column] =
+                        (float) (1 / (table[8 * row + column] * AAN_SCALE[row] * AAN_SCALE[column] * 8));
+            }
+        }
+        return output;
+    }
+
+    /**
+     * Writes an image to a file.
+     *
+     * @throws IOException if the file cannot be written
+     */
+    void write(@Nonnull BufferedImage image, @Nonnull File file) throws IOException {
+        try (OutputStream output = new BufferedOutputStream(new FileOutputStream(file), 1 << 16)) {
+            write(image, output);
+        }
+    }
+
+    /**
+     * Writes an image to a stream. Strips are encoded in parallel, in the pool of the calling thread if it is a
+     * fork join pool.
+     *
+     * @throws IOException              if the stream cannot be written
+     * @throws IllegalArgumentException if the image is larger than {@link JpegEncoder#MAX_SIZE} in either direction
+     */
+    void write(@Nonnull BufferedImage image, @Nonnull OutputStream out) throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (width > MAX_SIZE || height > MAX_SIZE) {
+            throw new IllegalArgumentException("Image is too large for JPEG: " + width + "x" + height);
+        }
+        int mcuWidth = 8 * subsampling.horizontal();
+        int mcuHeight = 8 * subsampling.vertical();
+        int mcusPerRow = (width + mcuWidth - 1) / mcuWidth;
+        int mcuRows = (height + mcuHeight - 1) / mcuHeight;
+        int threads = Runtime.getRuntime().availableProcessors();
+        // the restart interval is a 16 bit count of MCUs
+        int stripRows = Math.max(1, Math.min(MAX_SIZE / mcusPerRow,
+                                             (mcuRows + STRIPS_PER_THREAD * threads - 1)
+                                             / (STRIPS_PER_THREAD * threads)));
+        int strips = (mcuRows + stripRows - 1) / stripRows;
+        RowReader reader = RowReader.of(image);
+        byte[][] encoded = IntStream.range(0, strips)
+                                    .parallel()
+                                    .mapToObj(strip -> encodeStrip(reader, width, height, strip * stripRows,
+                                                                   Math.min(mcuRows, (strip + 1) * stripRows)))
+                                    .toArray(byte[][]::new);
+
+        DataOutputStream output = new DataOutputStream(out);
+        writeHeaders(output, width, height, stripRows * mcusPerRow);
+        for (int strip = 0; strip < strips; strip++) {
+            output.write(encoded[strip]);
+            if (strip < strips - 1) {
+                output.writeShort(0xFFD0 + strip % 8);
+            }
+        }
+        output.writeShort(0xFFD9);
+        output.flush();
+    }
+
+    private void writeHeaders(@Nonnull DataOutputStream output, int width, int height, int restartInterval)
+            throws IOException {
+        // start of image, and JFIF, so readers know the components are YCbCr
+        output.writeShort(0xFFD8);
+        output.writeShort(0xFFE0);
+        output.writeShort(16);
+        output.writeBytes("JFIF");
+        output.writeByte(0);
+        output.writeShort(0x0101);
+        output.writeByte(0);
+        output.writeShort(1);
+        output.writeShort(1);
+        output.writeShort(0);
+
+        // quantization tables, in zig-zag order
+        output.writeShort(0xFFDB);
+        output.writeShort(2 + 2 * 65);
+        int[][] tables = {luminanceTable, chrominanceTable};
+        for (int t = 0; t < tables.length; t++) {
+            output.writeByte(t);
+            for (int k = 0; k < 64; k++) {
+                output.writeByte(tables[t][ZIGZAG[k]]);
+            }
+        }
+
+        // frame: luma is sampled at the MCU size, chroma once per MCU
+        output.writeShort(0xFFC0);
+        output.writeShort(8 + 3 * 3);
+        output.writeByte(8);
+        output.writeShort(height);
+        output.writeShort(width);
+        output.writeByte(3);
+        output.writeByte(1);
+        output.writeByte(subsampling.horizontal() << 4 | subsampling.vertical());
+        output.writeByte(0);
+        for (int component = 2; component <= 3; component++) {
+            output.writeByte(component);
+            output.writeByte(0x11);
+            output.writeByte(1);
+        }
+
+        // Huffman tables
+        Huffman[] huffmans = {DC_LUMINANCE, AC_LUMINANCE, DC_CHROMINANCE, AC_CHROMINANCE};
+        int[] ids = {0x00, 0x10, 0x01, 0x11};
+        int length = 2;
+        for (Huffman huffman : huffmans) {
+            length += 1 + 16 + huffman.table.getValues().length;
+        }
+        output.writeShort(0xFFC4);
+        output.writeShort(length);
+        for (int i = 0; i < huffmans.length; i++) {
+            output.writeByte(ids[i]);
+            for (short count : huffmans[i].table.getLengths()) {
+                output.writeByte(count);
+            }
+            for (short value : huffmans[i].table.getValues()) {
+                output.writeByte(value);
+            }
+        }
+
+        output.writeShort(0xFFDD);
+        output.writeShort(4);
+        output.writeShort(restartInterval);
+
+        // scan of all components
+        output.writeShort(0xFFDA);
+        output.writeShort(6 + 2 * 3);
+        output.writeByte(3);
+        output.writeByte(1);
+        output.writeByte(0x00);
+        output.writeByte(2);
+        output.writeByte(0x11);
+        output.writeByte(3);
+        output.writeByte(0x11);
+        output.writeByte(0);
+        output.writeByte(63);
+        output.writeByte(0);
+    }
+
+    /**
+     * Encodes the MCU rows of a strip, with DC predictions starting from 0.
+     *
+     * @param start first MCU row of the strip, inclusive
+     * @param end   last MCU row of the strip, exclusive
+     * @return entropy coded data, padded to a whole byte
+     */
+    @Nonnull
+    private byte[] encodeStrip(@Nonnull RowReader reader, int width, int height, int start, int end) {
+        int h = subsampling.horizontal();
+        int v = subsampling.vertical();
+        int mcuWidth = 8 * h;
+        int mcuHeight = 8 * v;
+        int mcusPerRow = (width + mcuWidth - 1) / mcuWidth;
+        int paddedWidth = mcusPerRow * mcuWidth;
+        int chromaWidth = paddedWidth / h;
+        int[] rgb = new int[width];
+        float[] luma = new float[mcuHeight * paddedWidth];
+        float[] blue = new float[mcuHeight * paddedWidth];
+        float[] red = new float[mcuHeight * paddedWidth];
+        float[] blueSubsampled = new float[8 * chromaWidth];
+        float[] redSubsampled = new float[8 * chromaWidth];
+        float[] block = new float[64];
+        int[] coefficients = new int[3];
+        BitWriter bits = new BitWriter((end - start) * mcusPerRow * mcuWidth * mcuHeight / 4);
+
+        for (int mcuRow = start; mcuRow < end; mcuRow++) {
+            for (int r = 0; r < mcuHeight; r++) {
+                // edges are padded by repeating the last row and column
+                reader.read(Math.min(mcuRow * mcuHeight + r, height - 1), rgb);
+                int offset = r * paddedWidth;
+                for (int x = 0; x < paddedWidth; x++) {
+                    int pixel = rgb[Math.min(x, width - 1)];
+                    float red8 = (pixel >> 16) & 0xFF;
+                    float green8 = (pixel >> 8) & 0xFF;
+                    float blue8 = pixel & 0xFF;
+                    luma[offset + x] = 0.299f * red8 + 0.587f * green8 + 0.114f * blue8 - 128;
+                    blue[offset + x] = -0.168736f * red8 - 0.331264f * green8 + 0.5f * blue8;
+                    red[offset + x] = 0.5f * red8 - 0.418688f * green8 - 0.081312f * blue8;
+                }
+            }
+            subsample(blue, paddedWidth, blueSubsampled, chromaWidth);
+            subsample(red, paddedWidth, redSubsampled, chromaWidth);
+
+            for (int mcu = 0; mcu < mcusPerRow; mcu++) {
+                for (int by = 0; by < v; by++) {
+                    for (int bx = 0; bx < h; bx++) {
+                        load(luma, paddedWidth, mcu * mcuWidth + 8 * bx, 8 * by, block);
+                        coefficients[0] = encodeBlock(block, luminanceDivisors, coefficients[0], DC_LUMINANCE,
+                                                      AC_LUMINANCE, bits);
+                    }
+                }
+                load(blueSubsampled, chromaWidth, 8 * mcu, 0, block);
+                coefficients[1] = encodeBlock(block, chrominanceDivisors, coefficients[1], DC_CHROMINANCE,
+                                              AC_CHROMINANCE, bits);
+                load(redSubsampled, chromaWidth, 8 * mcu, 0, block);
+                coefficients[2] = encodeBlock(block, chrominanceDivisors, coefficients[2], DC_CHROMINANCE,
+                                              AC_CHROMINANCE, bits);
+            }
+        }
+        bits.pad();
+        return bits.toByteArray();
+    }
+
+    /**
+     * Averages blocks of a full resolution chroma plane, one MCU high, into 8 rows.
+     */
+    private void subsample(@Nonnull float[] input, int inputWidth, @Nonnull float[] output, int outputWidth) {
+        int h = subsampling.horizontal();
+        int v = subsampling.vertical();
+        if (h == 1 && v == 1) {
+            System.arraycopy(input, 0, output, 0, output.length);
+            return;
+        }
+        float scale = 1f / (h * v);
+        for (int y = 0; y < 8; y++) {
+            for (int x = 0; x < outputWidth; x++) {
+                float sum = 0;
+                for (int dy = 0; dy < v; dy++) {
+                    int row = (v * y + dy) * inputWidth + h * x;
+                    for (int dx = 0; dx < h; dx++) {
+                        sum += input[row + dx];
+                    }
+                }
+                output[y * outputWidth + x] = sum * scale;
+            }
+        }
+    }
+
+    private static void load(@Nonnull float[] plane, int planeWidth, int x, int y, @Nonnull float[] block) {
+        for (int row = 0; row < 8; row++) {
+            System.arraycopy(plane, (y + row) * planeWidth + x, block, 8 * row, 8);
+        }
+    }
+
+    /**
+     * Transforms, quantizes and Huffman codes a block.
+     *
+     * @param previousDc quantized DC coefficient of the previous block of the same component
+     * @return quantized DC coefficient of this block
+     */
+    private static int encodeBlock(@Nonnull float[] block, @Nonnull float[] divisors, int previousDc,
+                                   @Nonnull Huffman dc, @Nonnull Huffman ac, @Nonnull BitWriter bits) {
+        forwardDct(block);
+        int dcValue = Math.round(block[0] * divisors[0]);
+        int difference = dcValue - previousDc;
+        int size = size(difference);
+        bits.write(dc.codes[size], dc.sizes[size]);
+        bits.write(amplitude(difference, size), size);
+
+        int run = 0;
+        for (int k = 1; k < 64; k++) {
+            int n = ZIGZAG[k];
+            int value = Math.round(block[n] * divisors[n]);
+            if (value == 0) {
+                run++;
+                continue;
+            }
+            while (run > 15) {
+                bits.write(ac.codes[0xF0], ac.sizes[0xF0]);
+                run -= 16;
+            }
+            size = size(value);
+            int symbol = run << 4 | size;
+            bits.write(ac.codes[symbol], ac.sizes[symbol]);
+            bits.write(amplitude(value, size), size);
+            run = 0;
+        }
+        if (run > 0) {
+            bits.write(ac.codes[0x00], ac.sizes[0x00]);
+        }
+        return dcValue;
+    }
+
+    /**
+     * Gets the number of bits needed for the magnitude of a coefficient.
+     */
+    private static int size(int value) {
+        return 32 - Integer.numberOfLeadingZeros(Math.abs(value));
+    }
+
+    /**
+     * Gets the bits which follow the Huffman code of a coefficient, negative values are one less.
+     */
+    private static int amplitude(int value, int size) {
+        return (value < 0 ? value - 1 : value) & ((1 << size) - 1);
+    }
+
+    /**
+     * Unscaled forward DCT of a block in place, the AAN algorithm as in libjpeg's jfdctflt.c. Outputs have to be
+     * multiplied by {@link JpegEncoder#divisors(int[])}.
+     */
+    private static void forwardDct(@Nonnull float[] data) {
+        for (int pass = 0; pass < 2; pass++) {
+            // rows, then columns
+            int step = pass == 0 ? 1 : 8;
+            int stride = pass == 0 ? 8 : 1;
+            for (int i = 0; i < 8; i++) {
+                int o = i * stride;
+                float tmp0 = data[o] + data[o + 7 * step];
+                float tmp7 = data[o] - data[o + 7 * step];
+                float tmp1 = data[o + step] + data[o + 6 * step];
+                float tmp6 = data[o + step] - data[o + 6 * step];
+                float tmp2 = data[o + 2 * step] + data[o + 5 * step];
+                float tmp5 = data[o + 2 * step] - data[o + 5 * step];
+                float tmp3 = data[o + 3 * step] + data[o + 4 * step];
+                float tmp4 = data[o + 3 * step] - data[o + 4 * step];
+
+                // even part
+                float tmp10 = tmp0 + tmp3;
+                float tmp13 = tmp0 - tmp3;
+                float tmp11 = tmp1 + tmp2;
+                float tmp12 = tmp1 - tmp2;
+                data[o] = tmp10 + tmp11;
+                data[o + 4 * step] = tmp10 - tmp11;
+                float z1 = (tmp12 + tmp13) * 0.707106781f;
+                data[o + 2 * step] = tmp13 + z1;
+                data[o + 6 * step] = tmp13 - z1;
+
+                // odd part
+                tmp10 = tmp4 + tmp5;
+                tmp11 = tmp5 + tmp6;
+                tmp12 = tmp6 + tmp7;
+                float z5 = (tmp10 - tmp12) * 0.382683433f;
+                float z2 = 0.541196100f * tmp10 + z5;
+                float z4 = 1.306562965f * tmp12 + z5;
+                float z3 = tmp11 * 0.707106781f;
+                float z11 = tmp7 + z3;
+                float z13 = tmp7 - z3;
+                data[o + 5 * step] = z13 + z2;
+                data[o + 3 * step] = z13 - z2;
+                data[o + step] = z11 + z4;
+                data[o + 7 * step] = z11 - z4;
+            }
+        }
+    }
+
+    /**
+     * Huffman codes of a standard table, indexed by symbol.
+     */
+    private static final class Huffman {
+        @Nonnull private final JPEGHuffmanTable table;
+        @Nonnull private final int[] codes = new int[256];
+        @Nonnull private final int[] sizes = new int[256];
+
+        private Huffman(@Nonnull JPEGHuffmanTable table) {
+            this.table = table;
+            short[] lengths = table.getLengths();
+            short[] values = table.getValues();
+            int code = 0;
+            int k = 0;
+            for (int length = 1; length <= 16; length++) {
+                for (int i = 0; i < lengths[length - 1]; i++) {
+                    codes[values[k]] = code;
+                    sizes[values[k]] = length;
+                    k++;
+                    code++;
+                }
+                code <<= 1;
+            }
+        }
+    }
+
+    /**
+     * Packs bits into bytes, stuffing a zero byte after each 0xFF so it isn't read as a marker.
+     */
+    private static final class BitWriter {
+        @Nonnull private byte[] bytes;
+        private int size;
+        private long buffer;
+        private int count;
+
+        private BitWriter(int capacity) {
+            bytes = new byte[Math.max(64, capacity)];
+        }
+
+        private void write(int value, int length) {
+            buffer = buffer << length | value;
+            count += length;
+            while (count >= 8) {
+                count -= 8;
+                int b = (int) (buffer >> count) & 0xFF;
+                put(b);
+                if (b == 0xFF) {
+                    put(0);
+                }
+            }
+        }
+
+        private void put(int b) {
+            if (size == bytes.length) {
+                bytes = Arrays.copyOf(bytes, 2 * size);
+            }
+            bytes[size++] = (byte) b;
+        }
+
+        /**
+         * Fills the last byte with 1 bits.
+         */
+        private void pad() {
+            if (count > 0) {
+                write((1 << (8 - count)) - 1, 8 - count);
+            }
+        }
+
+        @Nonnull
+        private byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+    }
+
+    /**
+     * Reads rows of an image as 0xRRGGBB.
+     */
+    private interface RowReader {
+        void read(int y, @Nonnull int[] rgb);
+
+        @Nonnull
+        static RowReader of(@Nonnull BufferedImage image) {
+            int width = image.getWidth();
+            if (image.getType() == BufferedImage.TYPE_INT_RGB) {
+                // pixels are already packed as 0xRRGGBB
+                Raster raster = image.getRaster();
+                return (y, rgb) -> raster.getDataElements(0, y, width, 1, rgb);
+            }
+            return (y, rgb) -> image.getRGB(0, y, width, 1, rgb, 0, width);
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.brandontoner.jimagecollage;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Just enough JSON for {@link CollageManifest}s. Values are parsed as maps, lists, strings, doubles, booleans and null.
+ */
+enum Json {
+    ;
+
+    /**
+     * Quotes a string, escaping characters which cannot appear in a JSON string.
+     */
+    @Nonnull
+    static String quote(@Nonnull String value) {
+        StringBuilder output = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> output.append("\\\"");
+                case '\\' -> output.append("\\\\");
+                case '\n' -> output.append("\\n");
+                case '\r' -> output.append("\\r");
+                case '\t' -> output.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        output.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        output.append(c);
+                    }
+                }
+            }
+        }
+        return output.append('"').toString();
+    }
+
+    /**
+     * Parses a JSON document.
+     *
+     * @return the value of the document
+     * @throws IllegalArgumentException if the document is not valid JSON
+     */
+    @CheckForNull
+    static Object parse(@Nonnull String json) {
+        Parser parser = new Parser(json);
+        Object value = parser.value();
+        parser.skipWhitespace();
+        if (parser.position != json.length()) {
+            throw parser.error("Trailing characters");
+        }
+        return value;
+    }
+
+    private static final class Parser {
+        @Nonnull private final String json;
+        private int position;
+
+        private Parser(@Nonnull String json) {
+            this.json = json;
+        }
+
+        @Nonnull
+        private IllegalArgumentException error(@Nonnull String message) {
+            return new IllegalArgumentException(message + " at " + position);
+        }
+
+        private void skipWhitespace() {
+            while (position < json.length() && Character.isWhitespace(json.charAt(position))) {
+                position++;
+            }
+        }
+
+        private char peek() {
+            skipWhitespace();
+            if (position == json.length()) {
+                throw error("Unexpected end");
+            }
+            return json.charAt(position);
+        }
+
+        private void expect(char c) {
+            if (peek() != c) {
+                throw error("Expected " + c);
+            }
+            position++;
+        }
+
+        @CheckForNull
+        private Object value() {
+            char c = peek();
+            switch (c) {
+                case '{' -> {
+                    return object();
+                }
+                case '[' -> {
+                    return array();
+                }
+                case '"' -> {
+                    return string();
+                }
+                default -> {
+                    if (json.startsWith("true", position)) {
+                        position += 4;
+                        return true;
+                    }
+                    if (json.startsWith("false", position)) {
+                        position += 5;
+                        return false;
+                    }
+                    if (json.startsWith("null", position)) {
+                        position += 4;
+                        return null;
+                    }
+                    return number();
+                }
+            }
+        }
+
+        @Nonnull
+        private Map<String, Object> object() {
+            expect('{');
+            Map<String, Object> output = new LinkedHashMap<>();
+            if (peek() == '}') {
+                position++;
+                return output;
+            }
+            while (true) {
+                String key = string();
+                expect(':');
+                output.put(key, value());
+                if (peek() == '}') {
+                    position++;
+                    return output;
+                }
+                expect(',');
+            }
+        }
+
+        @Nonnull
+        private List<Object> array() {
+            expect('[');
+            List<Object> output = new ArrayList<>();
+            if (peek() == ']') {
+                position++;
+                return output;
+            }
+            while (true) {
+                output.add(value());
+                if (peek() == ']') {
+                    position++;
+                    return output;
+                }
+                expect(',');
+            }
+        }
+
+        @Nonnull
+        private String string() {
+            expect('"');
+            StringBuilder output = new StringBuilder();
+            while (true) {
+                if (position == json.length()) {
+                    throw error("Unterminated string");
+                }
+                char c = json.charAt(position++);
+                if (c == '"') {
+                    return output.toString();
+                }
+                if (c != '\\') {
+                    output.append(c);
+                    continue;
+                }
+                if (position == json.length()) {
+                    throw error("Unterminated string");
+                }
+                char escaped = json.charAt(position++);
+                switch (escaped) {
+                    case 'b' -> output.append('\b');
+                    case 'f' -> output.append('\f');
+                    case 'n' -> output.append('\n');
+                    case 'r' -> output.append('\r');
+                    case 't' -> output.append('\t');
+                    case 'u' -> {
+                        if (position + 4 > json.length()) {
+                            throw error("Bad unicode escape");
+                        }
+                        try {
+                            output.append((char) Integer.parseInt(json.substring(position, position + 4), 16));
+                        } catch (NumberFormatException e) {
+                            throw error("Bad unicode escape");
+                        }
+                        position += 4;
+                    }
+                    default -> output.append(escaped);
+                }
+            }
+        }
+
+        private double number() {
+            int start = position;
+            while (position < json.length() && "+-0123456789.eE".indexOf(json.charAt(position)) >= 0) {
+                position++;
+            }
+            try {
+                return Double.parseDouble(json.substring(start, position));
+            } catch (NumberFormatException e) {
+                position = start;
+                throw error("Expected a value");
+            }
+        }
+    }
+}
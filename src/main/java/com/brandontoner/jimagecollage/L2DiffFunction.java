@@ -0,0 +1,187 @@
+package com.brandontoner.jimagecollage;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Computes the diff between two images as the sum of (r1 - r2)^2 + (g1 - g2)^2 + (b1 - b2)^2 for each pixel.
+ * <p>
+ * Each image is treated as a vector of its channel values, and the squared distance is expanded as
+ * ||a - b||^2 = ||a||^2 + ||b||^2 - 2 a.b. The norms are computed once per image, and the dot products between a
+ * batch of sub images and all subsections are computed as a matrix multiplication which is blocked to fit in cache and
+ * split across the fork join pool.
+ * <p>
+ * Dot products are accumulated in floats over blocks of {@link L2DiffFunction#BLOCK_K} channels, which is small
+ * enough that each partial sum is an integer below 2^24 and is therefore exact. The results are exact, and don't
+ * depend on how the work was split.
+ */
+class L2DiffFunction extends DiffFunction<CostDiff> {
+    /** Number of sub images diffed together. */
+    private static final int BATCH_SIZE = 64;
+    /** Number of channel values in a block, 256 * 255^2 < 2^24. */
+    private static final int BLOCK_K = 256;
+    /** Maximum number of sub images in a leaf task. */
+    private static final int BLOCK_ROWS = 8;
+    /** Maximum number of subsections in a leaf task. */
+    private static final int BLOCK_COLUMNS = 64;
+
+    @Nonnull private final SubSectionCache<Vectors> subSectionVectors = new SubSectionCache<>(Vectors::new);
+
+    @Override
+    int batchSize() {
+        return BATCH_SIZE;
+    }
+
+    @Nonnull
+    @Override
+    String spec() {
+        return "l2";
+    }
+
+    @Nonnull
+    @Override
+    protected CostDiff diff(@Nonnull Tile tile, @Nonnull Image[] subSections) {
+        return diff(List.of(tile), subSections).get(0);
+    }
+
+    @Nonnull
+    @Override
+    List<CostDiff> diff(@Nonnull List<Tile> tiles, @Nonnull Image[] subSections) {
+        Vectors columns = subSectionVectors.get(subSections);
+        Vectors rows = new Vectors(tiles.stream().map(Tile::image).toArray(Image[]::new));
+        double[][] dots = new double[rows.count][columns.count];
+        new DotProductTask(rows, 0, rows.count, columns, 0, columns.count, dots).invoke();
+
+        List<CostDiff> output = new ArrayList<>(tiles.size());
+        for (int i = 0; i < rows.count; i++) {
+            double[] costs = dots[i];
+            for (int j = 0; j < columns.count; j++) {
+                costs[j] = rows.norms[i] + columns.norms[j] - 2 * costs[j];
+            }
+            output.add(new CostDiff(tiles.get(i), costs));
+        }
+        return output;
+    }
+
+    /**
+     * Images as vectors of their channel values, and the squared norm of each vector.
+     */
+    static final class Vectors {
+        @Nonnull final float[][] values;
+        @Nonnull final double[] norms;
+        final int count;
+        final int length;
+
+        Vectors(@Nonnull Image[] images) {
+            count = images.length;
+            length = count == 0 ? 0 : images[0].rgbArray().length * 3;
+            values = new float[count][];
+            norms = new double[count];
+            for (int i = 0; i < count; i++) {
+                int[] rgbArray = images[i].rgbArray();
+                assert rgbArray.length * 3 == length;
+                float[] vector = new float[length];
+                long norm = 0;
+                for (int p = 0; p < rgbArray.length; p++) {
+                    int rgb = rgbArray[p];
+                    int r = (rgb >> 16) & 0xFF;
+                    int g = (rgb >> 8) & 0xFF;
+                    int b = rgb & 0xFF;
+                    vector[3 * p] = r;
+                    vector[3 * p + 1] = g;
+                    vector[3 * p + 2] = b;
+                    norm += r * r + g * g + b * b;
+                }
+                values[i] = vector;
+                norms[i] = norm;
+            }
+        }
+    }
+
+    /**
+     * Computes the dot products of a range of rows with a range of columns, splitting the larger range in half until
+     * the block fits in cache.
+     */
+    private static final class DotProductTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        @Nonnull private final Vectors rows;
+        private final int rowStart;
+        private final int rowEnd;
+        @Nonnull private final Vectors columns;
+        private final int columnStart;
+        private final int columnEnd;
+        @Nonnull private final double[][] output;
+
+        private DotProductTask(@Nonnull Vectors rows, int rowStart, int rowEnd, @Nonnull Vectors columns,
+                               int columnStart, int columnEnd, @Nonnull double[][] output) {
+            this.rows = rows;
+            this.rowStart = rowStart;
+            this.rowEnd = rowEnd;
+            this.columns = columns;
+            this.columnStart = columnStart;
+            this.columnEnd = columnEnd;
+            this.output = output;
+        }
+
+        @Override
+        protected void compute() {
+            int rowCount = rowEnd - rowStart;
+            int columnCount = columnEnd - columnStart;
+            if (rowCount > BLOCK_ROWS && rowCount * BLOCK_COLUMNS >= columnCount * BLOCK_ROWS) {
+                int mid = (rowStart + rowEnd) >>> 1;
+                invokeAll(new DotProductTask(rows, rowStart, mid, columns, columnStart, columnEnd, output),
+                          new DotProductTask(rows, mid, rowEnd, columns, columnStart, columnEnd, output));
+            } else if (columnCount > BLOCK_COLUMNS) {
+                int mid = (columnStart + columnEnd) >>> 1;
+                invokeAll(new DotProductTask(rows, rowStart, rowEnd, columns, columnStart, mid, output),
+                          new DotProductTask(rows, rowStart, rowEnd, columns, mid, columnEnd, output));
+            } else {
+                multiply();
+            }
+        }
+
+        private void multiply() {
+            int length = rows.length;
+            for (int kStart = 0; kStart < length; kStart += BLOCK_K) {
+                int kEnd = Math.min(length, kStart + BLOCK_K);
+                for (int i = rowStart; i < rowEnd; i++) {
+                    float[] a = rows.values[i];
+                    double[] out = output[i];
+                    int j = columnStart;
+                    // four columns at a time, so each element of a is loaded once for four dot products
+                    for (; j + 4 <= columnEnd; j += 4) {
+                        float[] b0 = columns.values[j];
+                        float[] b1 = columns.values[j + 1];
+                        float[] b2 = columns.values[j + 2];
+                        float[] b3 = columns.values[j + 3];
+                        float s0 = 0;
+                        float s1 = 0;
+                        float s2 = 0;
+                        float s3 = 0;
+                        for (int k = kStart; k < kEnd; k++) {
+                            float v = a[k];
+                            s0 += v * b0[k];
+                            s1 += v * b1[k];
+                            s2 += v * b2[k];
+                            s3 += v * b3[k];
+                        }
+                        out[j] += s0;
+                        out[j + 1] += s1;
+                        out[j + 2] += s2;
+                        out[j + 3] += s3;
+                    }
+                    for (; j < columnEnd; j++) {
+                        float[] b = columns.values[j];
+                        float s = 0;
+                        for (int k = kStart; k < kEnd; k++) {
+                            s += a[k] * b[k];
+                        }
+                        out[j] += s;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.brandontoner.jimagecollage;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * Compares images by their color difference in CIE L*a*b*, summing the delta E of each pixel, either CIE76 (the
+ * distance in Lab) or CIE94 (which weights chroma and hue differences less for saturated colors of the subsection).
+ * <p>
+ * Each image is converted to Lab once: sRGB is linearized with a 256 entry table, and the cube root of the Lab
+ * transfer function is looked up in a table too, so converting a pixel costs a matrix multiply and a few loads. Lab is
+ * stored in fixed point shorts, in units of 1 / {@link LabDiffFunction#SCALE}, so comparing two pixels with CIE76 is a
+ * few integer operations and a square root, with no allocation. CIE94 also needs chroma, which is only stored in that
+ * mode, and weights the chroma and hue differences by two floats of the subsection. Subsections are converted once per
+ * master image.
+ */
+class LabDiffFunction extends DiffFunction<CostDiff> {
+    /** Fixed point scale of L, a, b and chroma. L is up to 100 and a and b well within -128 to 128 for sRGB. */
+    private static final int SCALE = 64;
+    /** sRGB component to linear light, from 0 to 1. */
+    private static final float[] LINEAR = linear();
+    /** Number of steps of the Lab transfer function table, from 0 to 1. */
+    private static final int TRANSFER_STEPS = 1 << 14;
+    /** Lab transfer function, the cube root above a small threshold, linear below it. */
+    private static final float[] TRANSFER = transfer();
+    /** D65 white point. */
+    private static final float WHITE_X = 0.95047f;
+    private static final float WHITE_Z = 1.08883f;
+
+    private final boolean cie94;
+    @Nonnull private final SubSectionCache<Lab[]> subSectionLab;
+
+    /**
+     * @param cie94 whether to use CIE94 rather than CIE76
+     */
+    LabDiffFunction(boolean cie94) {
+        this.cie94 = cie94;
+        subSectionLab = new SubSectionCache<>(this::lab);
+    }
+
+    @Nonnull
+    private static float[] linear() {
+        float[] output = new float[256];
+        for (int i = 0; i < output.length; i++) {
+            double c = i / 255.0;
+            output[i] = (float) (c <= 0.04045 ? c / 12.92 : Math.pow((c + 0.055) / 1.055, 2.4));
+        }
+        return output;
+    }
+
+    @Nonnull
+    private static float[] transfer() {
+        double delta = 6.0 / 29;
+        float[] output = new float[TRANSFER_STEPS + 1];
+        for (int i = 0; i < output.length; i++) {
+            double t = (double) i / TRANSFER_STEPS;
+            output[i] = (float) (t > delta * delta * delta ? Math.cbrt(t) : t / (3 * delta * delta) + 4.0 / 29);
+        }
+        return output;
+    }
+
+    private static float transfer(float t) {
+        // components of colors in the sRGB gamut are within [0, 1] relative to the white point
+        return TRANSFER[Math.min(TRANSFER_STEPS, Math.max(0, (int) (t * TRANSFER_STEPS + 0.5f)))];
+    }
+
+    @Nonnull
+    private Lab[] lab(@Nonnull Image[] images) {
+        Lab[] output = new Lab[images.length];
+        for (int i = 0; i < images.length; i++) {
+            output[i] = new Lab(images[i], cie94, cie94);
+        }
+        return output;
+    }
+
+    /**
+     * Sums the CIE76 delta E between two images, in units of 1 / {@link LabDiffFunction#SCALE}.
+     */
+    private static double cie76(@Nonnull Lab subSection, @Nonnull Lab tile) {
+        short[] l1 = subSection.l;
+        short[] a1 = subSection.a;
+        short[] b1 = subSection.b;
+        short[] l2 = tile.l;
+        short[] a2 = tile.a;
+        short[] b2 = tile.b;
+        double sum = 0;
+        for (int i = 0; i < l1.length; i++) {
+            int dl = l1[i] - l2[i];
+            int da = a1[i] - a2[i];
+            int db = b1[i] - b2[i];
+            sum += Math.sqrt(dl * dl + da * da + db * db);
+        }
+        return sum;
+    }
+
+    /**
+     * Sums the CIE94 delta E between two images, with the subsection as the reference, in units of
+     * 1 / {@link LabDiffFunction#SCALE}.
+     */
+    private static double cie94(@Nonnull Lab subSection, @Nonnull Lab tile) {
+        short[] l1 = subSection.l;
+        short[] a1 = subSection.a;
+        short[] b1 = subSection.b;
+        short[] c1 = subSection.c;
+        float[] chromaWeights = subSection.chromaWeights;
+        float[] hueWeights = subSection.hueWeights;
+        short[] l2 = tile.l;
+        short[] a2 = tile.a;
+        short[] b2 = tile.b;
+        short[] c2 = tile.c;
+        assert c1 != null && c2 != null && chromaWeights != null && hueWeights != null;
+        double sum = 0;
+        for (int i = 0; i < l1.length; i++) {
+            int dl = l1[i] - l2[i];
+            int da = a1[i] - a2[i];
+            int db = b1[i] - b2[i];
+            int dc = c1[i] - c2[i];
+            // the hue difference squared is what is left of the a b difference once chroma is taken out
+            int dh = Math.max(0, da * da + db * db - dc * dc);
+            sum += Math.sqrt(dl * dl + dc * dc * chromaWeights[i] + dh * hueWeights[i]);
+        }
+        return sum;
+    }
+
+    @Nonnull
+    @Override
+    CostDiff diff(@Nonnull Tile tile, @Nonnull Image[] subSections) {
+        Lab[] lab = subSectionLab.get(subSections);
+        Lab scaled = new Lab(tile.image(), cie94, false);
+        double[] output = new double[subSections.length];
+        for (int i = 0; i < subSections.length; i++) {
+            output[i] = (cie94 ? cie94(lab[i], scaled) : cie76(lab[i], scaled)) / SCALE;
+        }
+        return new CostDiff(tile, output);
+    }
+
+    @Nonnull
+    @Override
+    String spec() {
+        return cie94 ? "labCie94" : "lab";
+    }
+
+    /**
+     * Planes of L, a, b and chroma of an image, in units of 1 / {@link LabDiffFunction#SCALE}.
+     */
+    private static final class Lab {
+        @Nonnull private final short[] l;
+        @Nonnull private final short[] a;
+        @Nonnull private final short[] b;
+        /** Chroma, only needed by CIE94. */
+        @CheckForNull private final short[] c;
+        /** 1 / SC^2 and 1 / SH^2 of CIE94 for each pixel, if this is a reference image. */
+        @CheckForNull private final float[] chromaWeights;
+        @CheckForNull private final float[] hueWeights;
+
+        /**
+         * @param image     image to convert
+         * @param cie94     whether to compute chroma, which only CIE94 uses
+         * @param reference whether to compute the CIE94 weights, which depend on the reference image's chroma
+         */
+        private Lab(@Nonnull Image image, boolean cie94, boolean reference) {
+            int[] rgbArray = image.rgbArray();
+            int n = rgbArray.length;
+            l = new short[n];
+            a = new short[n];
+            b = new short[n];
+            c = cie94 ? new short[n] : null;
+            chromaWeights = reference ? new float[n] : null;
+            hueWeights = reference ? new float[n] : null;
+            for (int i = 0; i < n; i++) {
+                int rgb = rgbArray[i];
+                float red = LINEAR[(rgb >> 16) & 0xFF];
+                float green = LINEAR[(rgb >> 8) & 0xFF];
+                float blue = LINEAR[rgb & 0xFF];
+                float fx = transfer((0.4124564f * red + 0.3575761f * green + 0.1804375f * blue) / WHITE_X);
+                float fy = transfer(0.2126729f * red + 0.7151522f * green + 0.0721750f * blue);
+                float fz = transfer((0.0193339f * red + 0.1191920f * green + 0.9503041f * blue) / WHITE_Z);
+                float lightness = 116 * fy - 16;
+                float greenRed = 500 * (fx - fy);
+                float blueYellow = 200 * (fy - fz);
+                l[i] = (short) Math.round(lightness * SCALE);
+                a[i] = (short) Math.round(greenRed * SCALE);
+                b[i] = (short) Math.round(blueYellow * SCALE);
+                if (!cie94) {
+                    continue;
+                }
+                float chroma = (float) Math.sqrt(greenRed * greenRed + blueYellow * blueYellow);
+                c[i] = (short) Math.round(chroma * SCALE);
+                if (reference) {
+                    // graphic arts constants, kL = kC = kH = 1
+                    float sc = 1 + 0.045f * chroma;
+                    float sh = 1 + 0.015f * chroma;
+                    chromaWeights[i] = 1 / (sc * sc);
+                    hueWeights[i] = 1 / (sh * sh);
+                }
+            }
+        }
+    }
+}
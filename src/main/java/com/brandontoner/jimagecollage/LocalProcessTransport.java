@@ -0,0 +1,241 @@
+package com.brandontoner.jimagecollage;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs {@link ShardWorker}s in child processes on this machine, with the same class path as this JVM, and talks to
+ * them over their standard input and output. Each worker handles one request at a time. Worker logs go to the
+ * standard error of this process. A worker which answers a request with an error keeps handling requests, and the
+ * request fails with a {@link ShardException}. A worker whose streams fail or end is destroyed and replaced by a new
+ * process, since its streams may be out of step with the protocol.
+ */
+@ThreadSafe
+public final class LocalProcessTransport implements ShardTransport {
+    private static final Logger LOGGER = LogManager.getLogger(LocalProcessTransport.class);
+    /** Command which starts a worker process. */
+    @Nonnull private final List<String> command = new ArrayList<>();
+    @GuardedBy("this") @Nonnull private final List<Worker> workers = new ArrayList<>();
+    /** Workers which aren't handling a request. */
+    @Nonnull private final BlockingQueue<Worker> idle = new LinkedBlockingQueue<>();
+    @Nonnull private final ExecutorService executor;
+    @GuardedBy("this") private boolean closed;
+
+    /**
+     * Starts worker processes.
+     *
+     * @param workers number of worker processes
+     * @throws IOException if a process cannot be started
+     */
+    public LocalProcessTransport(int workers) throws IOException {
+        this(workers, List.of());
+    }
+
+    /**
+     * Starts worker processes.
+     *
+     * @param workers    number of worker processes
+     * @param jvmOptions options of the worker JVMs, such as the heap size
+     * @throws IOException if a process cannot be started
+     */
+    public LocalProcessTransport(int workers, @Nonnull List<String> jvmOptions) throws IOException {
+        if (workers < 1) {
+            throw new IllegalArgumentException("Workers must be positive: " + workers);
+        }
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmOptions);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(ShardWorker.class.getName());
+        executor = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "ImageCollage-shard");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            for (int i = 0; i < workers; i++) {
+                startWorker();
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        LOGGER.info("Started {} shard workers", workers);
+    }
+
+    /**
+     * Starts a worker process and makes it available to handle requests.
+     */
+    private synchronized void startWorker() throws IOException {
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        Worker worker = new Worker(process);
+        workers.add(worker);
+        idle.add(worker);
+    }
+
+    /**
+     * Destroys a worker whose streams failed, and starts another in its place unless this transport is closed.
+     */
+    private synchronized void replaceWorker(@Nonnull Worker worker) {
+        worker.process.destroyForcibly();
+        workers.remove(worker);
+        if (closed) {
+            return;
+        }
+        try {
+            startWorker();
+            LOGGER.warn("Replaced shard worker {}", worker.process.pid());
+        } catch (IOException e) {
+            LOGGER.error("Cannot replace shard worker {}, {} left", worker.process.pid(), workers.size(), e);
+        }
+    }
+
+    @Nonnull
+    private Worker takeWorker() throws InterruptedException {
+        while (true) {
+            Worker worker = idle.poll(1, TimeUnit.SECONDS);
+            if (worker != null) {
+                return worker;
+            }
+            synchronized (this) {
+                // workers which could not be replaced are gone for good
+                if (workers.isEmpty()) {
+                    throw new IllegalStateException("No shard workers left");
+                }
+            }
+        }
+    }
+
+    @Nonnull
+    @Override
+    public CompletableFuture<byte[]> send(@Nonnull byte[] request) {
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("Transport is closed");
+            }
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            Worker worker;
+            try {
+                worker = takeWorker();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted waiting for a worker", e);
+            }
+            boolean inStep = false;
+            try {
+                byte[] response = worker.send(request);
+                inStep = true;
+                return response;
+            } catch (ShardException e) {
+                // the worker read the whole request and answered it, so it can be reused
+                inStep = true;
+                throw e;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                if (inStep) {
+                    idle.add(worker);
+                } else {
+                    replaceWorker(worker);
+                }
+            }
+        }, executor);
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        executor.shutdown();
+        List<Worker> remaining;
+        try {
+            executor.awaitTermination(1, TimeUnit.HOURS);
+            synchronized (this) {
+                remaining = List.copyOf(workers);
+            }
+            for (Worker worker : remaining) {
+                worker.close();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            synchronized (this) {
+                remaining = List.copyOf(workers);
+            }
+            for (Worker worker : remaining) {
+                worker.process.destroyForcibly();
+            }
+        }
+    }
+
+    /**
+     * A worker process, which is only used by one thread at a time.
+     */
+    private static final class Worker {
+        @Nonnull private final Process process;
+        @Nonnull private final DataOutputStream input;
+        @Nonnull private final DataInputStream output;
+
+        private Worker(@Nonnull Process process) {
+            this.process = process;
+            input = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+            output = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+        }
+
+        /**
+         * @throws ShardException if the worker answers with an error
+         * @throws IOException    if the worker's streams fail or end
+         */
+        @Nonnull
+        private byte[] send(@Nonnull byte[] request) throws IOException {
+            input.writeInt(request.length);
+            input.write(request);
+            input.flush();
+            int length = output.readInt();
+            if (length < 0) {
+                throw new ShardException("Shard worker " + process.pid() + " failed: " + output.readUTF());
+            }
+            byte[] response = new byte[length];
+            output.readFully(response);
+            return response;
+        }
+
+        /**
+         * Closes the worker's input, which makes it exit, and waits for it to exit.
+         */
+        private void close() throws InterruptedException {
+            try {
+                input.close();
+            } catch (IOException e) {
+                LOGGER.warn("Cannot close input of shard worker {}", process.pid(), e);
+            }
+            if (!process.waitFor(10, TimeUnit.SECONDS)) {
+                LOGGER.warn("Shard worker {} did not exit, destroying it", process.pid());
+                process.destroyForcibly();
+            }
+        }
+    }
+}
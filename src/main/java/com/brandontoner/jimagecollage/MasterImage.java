@@ -3,70 +3,153 @@ package com.brandontoner.jimagecollage;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
-import java.awt.Color;
-import java.awt.Graphics2D;
-import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.nio.file.Path;
-import java.util.AbstractMap;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 import java.util.Objects;
 
 final class MasterImage<T extends SubImagesDiff<T>> {
     private static final Logger LOGGER = LogManager.getLogger(MasterImage.class);
+    /** Maximum width or height of a preview, in pixels. */
+    private static final int PREVIEW_MAX_EDGE = 1024;
     @Nonnull private final Image[] subSections;
-    @Nonnull private final T[] bestImages;
-    private final int subSectionsX;
-    private final int subSectionsY;
+    /**
+     * Sub image placed in each subsection, with its scores for every subsection, or null, only read when it is
+     * displaced to place it again. The tile itself is in {@link MasterImage#tiles}, so no diff object is kept per
+     * candidate.
+     */
+    @Nonnull private final Entry[] placed;
+    /** Sub image id of the diff placed in each subsection, or -1 if a subsection is empty. */
+    @Nonnull private final int[] bestSubImages;
+    /** Score of the diff placed in each subsection. */
+    @Nonnull private final double[] bestScores;
+    /** Number of times each sub image is used, indexed by sub image id, grown as ids are seen. */
+    @Nonnull private int[] usages = new int[1024];
+    /** Tile placed in each subsection, or null if a subsection is empty. */
+    @Nonnull private final Tile[] tiles;
+    /** Blocks of cells covered by each subsection. */
+    @Nonnull private final Rectangle[] cells;
+    private final int gridWidth;
+    private final int gridHeight;
     private final int subSectionWidth;
     private final int subSectionHeight;
     private final int usagesPerImage;
     private final CropFunction cropFunction;
+    /** Placements of each sub image, or null if there is no minimum distance between them. */
+    @CheckForNull private final PlacementIndex placements;
 
+    /**
+     * @param target            path of the target image
+     * @param subSectionsX      number of horizontal subsections, in the coarsest grid if adaptive
+     * @param subSectionsY      number of vertical subsections, in the coarsest grid if adaptive
+     * @param adaptiveDepth     number of times a subsection may be split into four, 0 for a uniform grid
+     * @param varianceThreshold luma variance above which a subsection is split
+     * @param usagesPerImage    maximum times each sub image can be used
+     * @param cropFunction      crop function used to get sub images into the correct aspect ratio
+     * @param minimumDistance   minimum distance between placements of the same sub image in cells, 0 for none
+     * @see SubSectionLayout
+     */
     MasterImage(@Nonnull Path target,
                 int subSectionsX,
                 int subSectionsY,
+                int adaptiveDepth,
+                double varianceThreshold,
                 int usagesPerImage,
-                CropFunction cropFunction) {
+                CropFunction cropFunction,
+                double minimumDistance) {
         this.usagesPerImage = usagesPerImage;
         this.cropFunction = cropFunction;
         Image image = new Image(Objects.requireNonNull(ImageUtils.read(target)));
-        this.subSectionsX = subSectionsX;
-        this.subSectionsY = subSectionsY;
+        SubSectionLayout layout =
+                SubSectionLayout.create(image, subSectionsX, subSectionsY, adaptiveDepth, varianceThreshold);
 
-        subSectionWidth = image.getWidth() / subSectionsX;
-        subSectionHeight = image.getHeight() / subSectionsY;
+        subSections = layout.subSections();
+        cells = layout.cells();
+        gridWidth = layout.gridWidth();
+        gridHeight = layout.gridHeight();
+        subSectionWidth = layout.cellWidth();
+        subSectionHeight = layout.cellHeight();
+        placed = new Entry[subSections.length];
+        bestSubImages = new int[subSections.length];
+        Arrays.fill(bestSubImages, -1);
+        bestScores = new double[subSections.length];
+        tiles = new Tile[subSections.length];
+        placements = minimumDistance > 0 ? new PlacementIndex(cells, minimumDistance) : null;
+        LOGGER.info("Divided target into {} subsections", subSections.length);
+    }
+
+    private int usages(int subImage) {
+        if (subImage >= usages.length) {
+            usages = Arrays.copyOf(usages, Math.max(subImage + 1, 2 * usages.length));
+        }
+        return usages[subImage];
+    }
 
-        int subImagesCount = subSectionsY * subSectionsX;
-        subSections = new Image[subImagesCount];
-        bestImages = (T[]) new SubImagesDiff[subImagesCount];
+    void add(@Nonnull T entry) {
+        add(new Entry(new Tile[] {entry.tile()}, null, entry.scores()));
+    }
 
-        for (int y = 0; y < subSectionsY; ++y) {
-            for (int x = 0; x < subSectionsX; ++x) {
-                subSections[y * subSectionsX + x] =
-                        image.subImage(x * subSectionWidth, y * subSectionHeight, subSectionWidth, subSectionHeight);
+    /**
+     * Adds the diffs of all tiles of one sub image, such as its crop variants, as one candidate which has the best
+     * tile's score in each subsection, and places that tile wherever the candidate is placed. The tiles of a sub image
+     * share its usages, so adding them one at a time would keep whichever tile arrived first once it is used up.
+     *
+     * @param diffs diffs of the tiles of one sub image, in the same order for every master image, which breaks ties
+     */
+    void add(@Nonnull List<? extends SubImagesDiff<?>> diffs) {
+        if (diffs.isEmpty()) {
+            return;
+        }
+        Tile[] variantTiles = new Tile[diffs.size()];
+        variantTiles[0] = diffs.get(0).tile();
+        if (diffs.size() == 1) {
+            add(new Entry(variantTiles, null, diffs.get(0).scores()));
+            return;
+        }
+        double[] scores = diffs.get(0).scores().clone();
+        int[] variants = new int[scores.length];
+        for (int v = 1; v < diffs.size(); v++) {
+            SubImagesDiff<?> diff = diffs.get(v);
+            variantTiles[v] = diff.tile();
+            for (int i = 0; i < scores.length; i++) {
+                double score = diff.score(i);
+                if (score < scores[i] || Double.isNaN(scores[i]) && !Double.isNaN(score)) {
+                    scores[i] = score;
+                    variants[i] = v;
+                }
             }
         }
+        add(new Entry(variantTiles, variants, scores));
     }
 
-    void add(@Nonnull T entry) {
+    private void add(@Nonnull Entry entry) {
+        double[] scores = entry.scores();
+        int subImage = entry.subImage();
         int usages;
-        while ((usages = entry.getUsages()) < usagesPerImage) {
+        while ((usages = usages(subImage)) < usagesPerImage) {
             int bestIndex = -1;
 
-            for (int i = 0; i < bestImages.length; i++) {
-                T bestImage = bestImages[i];
-                if (bestImage == null || entry.isBetter(i, bestImage)) {
+            for (int i = 0; i < scores.length; i++) {
+                if (Double.isNaN(scores[i]) || scores[i] == Double.POSITIVE_INFINITY) {
+                    // ruled out by the diff function, even if the subsection is empty
+                    continue;
+                }
+                int bestSubImage = bestSubImages[i];
+                if (bestSubImage == -1 || scores[i] < bestScores[i]) {
                     // better than the existing best image
-                    if (bestImage == null || usages <= bestImage.getUsages()) {
+                    if (bestSubImage == -1 || usages <= this.usages[bestSubImage]) {
                         // only replace images that have been used the same number of times or more
-                        if (bestIndex == -1 || entry.isBetter(i, bestIndex)) {
+                        if (bestIndex == -1 || scores[i] < scores[bestIndex]) {
                             // better than the diff for this image
-                            bestIndex = i;
+                            if (placements == null || !placements.isTooClose(subImage, i)) {
+                                // not too close to another copy of this image
+                                bestIndex = i;
+                            }
                         }
                     }
                 }
@@ -75,63 +158,184 @@ final class MasterImage<T extends SubImagesDiff<T>> {
             if (bestIndex == -1) {
                 return;
             }
-            entry.incrementUsages();
-            T oldFile = bestImages[bestIndex];
-            bestImages[bestIndex] = entry;
-            if (oldFile != null) {
+            this.usages[subImage]++;
+            Entry old = placed[bestIndex];
+            placed[bestIndex] = entry;
+            bestSubImages[bestIndex] = subImage;
+            bestScores[bestIndex] = scores[bestIndex];
+            tiles[bestIndex] = entry.tile(bestIndex);
+            if (placements != null) {
+                if (old != null) {
+                    placements.remove(old.subImage(), bestIndex);
+                }
+                placements.add(subImage, bestIndex);
+            }
+            if (old != null) {
                 // RE-PROCESS OVERWRITTEN FILE
-                oldFile.decrementUsages();
-                add(oldFile);
+                this.usages[old.subImage()]--;
+                add(old);
             }
         }
     }
 
+    /**
+     * Places a tile in a subsection, if the subsection is empty, the tile's sub image hasn't been used the maximum
+     * number of times and isn't too close to another copy. Unlike {@link MasterImage#add(SubImagesDiff)}, tiles are
+     * never displaced, so the result only depends on the order of calls.
+     *
+     * @return true if the tile was placed
+     */
+    boolean place(int subSection, @Nonnull Tile tile) {
+        int subImage = tile.subImage();
+        if (!isEmpty(subSection) || !canUse(tile)
+            || placements != null && placements.isTooClose(subImage, subSection)) {
+            return false;
+        }
+        usages[subImage]++;
+        tiles[subSection] = tile;
+        if (placements != null) {
+            placements.add(subImage, subSection);
+        }
+        return true;
+    }
+
+    /**
+     * Places a tile in a subsection permanently, it is never displaced by {@link MasterImage#add(SubImagesDiff)}. Used
+     * to carry the tiles of subsections which haven't changed over from the previous frame of a sequence.
+     */
+    void lock(int subSection, @Nonnull Tile tile) {
+        int subImage = tile.subImage();
+        usages(subImage);
+        usages[subImage]++;
+        bestSubImages[subSection] = subImage;
+        bestScores[subSection] = Double.NEGATIVE_INFINITY;
+        tiles[subSection] = tile;
+        if (placements != null) {
+            placements.add(subImage, subSection);
+        }
+    }
+
+    /**
+     * Gets the tile placed in a subsection.
+     *
+     * @return tile, or null if the subsection is empty
+     */
+    @CheckForNull
+    Tile tile(int subSection) {
+        return tiles[subSection];
+    }
+
+    /**
+     * Checks whether another master image has the same subsections, in the same places and of the same size.
+     */
+    boolean hasSameLayout(@Nonnull MasterImage<?> other) {
+        return gridWidth == other.gridWidth && gridHeight == other.gridHeight
+               && subSectionWidth == other.subSectionWidth && subSectionHeight == other.subSectionHeight
+               && Arrays.equals(cells, other.cells);
+    }
+
+    /**
+     * Checks whether a subsection has no tile.
+     */
+    boolean isEmpty(int subSection) {
+        return tiles[subSection] == null;
+    }
+
+    /**
+     * Checks whether a tile's sub image can be used again.
+     */
+    boolean canUse(@Nonnull Tile tile) {
+        return canUse(tile.subImage());
+    }
+
+    /**
+     * Checks whether a sub image can be used again.
+     *
+     * @param subImage id of the sub image
+     */
+    boolean canUse(int subImage) {
+        return usages(subImage) < usagesPerImage;
+    }
+
+    /**
+     * Gets the manifest of the tiles placed so far.
+     */
     @Nonnull
-    BufferedImage compile() {
-        LOGGER.info("Compiling images into collage");
-        BufferedImage bi = cropFunction.crop(ImageUtils.read(bestImages[0].path()), subSectionWidth, subSectionHeight);
-        int scale = getScale(bi.getWidth(), bi.getHeight());
-        int width = bi.getWidth() / scale;
-        int height = bi.getHeight() / scale;
-        BufferedImage output =
-                new BufferedImage(width * subSectionsX, height * subSectionsY, BufferedImage.TYPE_INT_RGB);
-        Graphics2D g2 = output.createGraphics();
-        g2.setBackground(Color.WHITE);
-        g2.clearRect(0, 0, output.getWidth(), output.getHeight());
-
-
-        Map<Path, List<Point>> imageToUsages = new HashMap<>();
-
-        for (int y = 0; y < subSectionsY; ++y) {
-            for (int x = 0; x < subSectionsX; ++x) {
-                T image = bestImages[y * subSectionsX + x];
-                if (image != null) {
-                    imageToUsages.computeIfAbsent(image.path(), ignored -> new ArrayList<>()).add(new Point(x, y));
-                }
+    CollageManifest manifest() {
+        List<CollageManifest.Placement> placements = new ArrayList<>();
+        for (int i = 0; i < tiles.length; i++) {
+            Tile tile = tiles[i];
+            if (tile != null) {
+                Rectangle cell = cells[i];
+                placements.add(new CollageManifest.Placement(cell.x, cell.y, cell.width, cell.height, tile.path(),
+                                                             tile.cropWindow()));
             }
         }
-        imageToUsages.entrySet()
-                     .parallelStream()
-                     .map(e -> new AbstractMap.SimpleImmutableEntry<>(cropFunction.crop(ImageUtils.read(e.getKey()),
-                                                                                        subSectionWidth,
-                                                                                        subSectionHeight),
-                                                                      e.getValue()))
-                     .forEach(e -> {
-                         synchronized (g2) {
-                             for (Point point : e.getValue()) {
-                                 g2.drawImage(e.getKey(), point.x * width, point.y * height, width, height, null);
-                             }
-                         }
-                     });
-        return output;
+        return new CollageManifest(gridWidth, gridHeight, subSectionWidth, subSectionHeight, cropFunction,
+                                   placements);
+    }
+
+    @Nonnull
+    BufferedImage compile(@Nonnull MemoryBudget memoryBudget) {
+        return manifest().render(memoryBudget);
+    }
+
+    /**
+     * Gets the tiles placed so far, to render a {@link MasterImage#preview(Tile[])} from. Callers must hold the lock on
+     * this master image, or otherwise prevent concurrent calls to {@link MasterImage#add(SubImagesDiff)}.
+     *
+     * @return tile in each subsection, or null if a subsection is empty
+     */
+    @Nonnull
+    Tile[] snapshot() {
+        return tiles.clone();
     }
 
-    private int getScale(long width, long height) {
-        for (int scale = 1; true; ++scale) {
-            if (Math.multiplyExact(width * subSectionsX / scale, height * subSectionsY / scale) < Integer.MAX_VALUE) {
-                return scale;
+    /**
+     * Renders tiles from the scaled images they were diffed with, halving the size of each cell until the long edge
+     * of the preview is at most {@link MasterImage#PREVIEW_MAX_EDGE}, or each cell is a single pixel. This is cheap, it
+     * only samples the scaled tiles, so it can be used to preview the collage while it is being computed, and it only
+     * reads the snapshot, so it doesn't need the lock on this master image.
+     *
+     * @param tiles {@link MasterImage#snapshot()} of the tiles to render
+     * @return preview of the collage, with white in subsections with no image yet
+     */
+    @Nonnull
+    BufferedImage preview(@Nonnull Tile[] tiles) {
+        int cellWidth = subSectionWidth;
+        int cellHeight = subSectionHeight;
+        while (Math.max(gridWidth * cellWidth, gridHeight * cellHeight) > PREVIEW_MAX_EDGE
+               && (cellWidth > 1 || cellHeight > 1)) {
+            cellWidth = Math.max(1, cellWidth / 2);
+            cellHeight = Math.max(1, cellHeight / 2);
+        }
+        int width = gridWidth * cellWidth;
+        int height = gridHeight * cellHeight;
+        int[] rgbArray = new int[width * height];
+        Arrays.fill(rgbArray, 0xFFFFFF);
+        for (int i = 0; i < tiles.length; i++) {
+            Tile entry = tiles[i];
+            if (entry == null) {
+                continue;
+            }
+            Rectangle cell = cells[i];
+            int[] tile = entry.image().rgbArray();
+            // adaptive subsections span several cells, sample the tile over the whole block
+            int blockWidth = cellWidth * cell.width;
+            int blockHeight = cellHeight * cell.height;
+            int xOffset = cell.x * cellWidth;
+            int yOffset = cell.y * cellHeight;
+            for (int y = 0; y < blockHeight; ++y) {
+                int row = (yOffset + y) * width + xOffset;
+                int tileRow = (y * subSectionHeight / blockHeight) * subSectionWidth;
+                for (int x = 0; x < blockWidth; ++x) {
+                    rgbArray[row + x] = tile[tileRow + x * subSectionWidth / blockWidth];
+                }
             }
         }
+        BufferedImage output = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        output.setRGB(0, 0, width, height, rgbArray, 0, width);
+        return output;
     }
 
     int subSectionWidth() {
@@ -146,4 +350,25 @@ final class MasterImage<T extends SubImagesDiff<T>> {
     Image[] subSections() {
         return subSections;
     }
+
+    /**
+     * Tiles of one sub image, and their scores.
+     *
+     * @param tiles    tiles of the sub image
+     * @param variants index in tiles of the tile with the best score in each subsection, or null if there is one tile
+     * @param scores   best score of the tiles in each subsection
+     */
+    private record Entry(@Nonnull Tile[] tiles, @CheckForNull int[] variants, @Nonnull double[] scores) {
+        int subImage() {
+            return tiles[0].subImage();
+        }
+
+        /**
+         * Gets the tile to place in a subsection.
+         */
+        @Nonnull
+        Tile tile(int subSection) {
+            return variants == null ? tiles[0] : tiles[variants[subSection]];
+        }
+    }
 }
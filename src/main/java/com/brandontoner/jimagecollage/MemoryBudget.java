@@ -0,0 +1,108 @@
+package com.brandontoner.jimagecollage;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Limits the memory used by concurrent image decodes. Each decode reserves its estimated size before starting, and
+ * waits while that would exceed the budget, so the number of concurrent decodes adapts to the size of the images: many
+ * small images can be decoded at once, but only a few huge ones.
+ * <p>
+ * A reservation larger than the whole budget is admitted when nothing else is reserved, so it can't wait forever.
+ * Waiting threads are reported to the {@link ForkJoinPool} as blocked, so the pool can run other work, like diffing,
+ * in the meantime.
+ */
+@ThreadSafe
+final class MemoryBudget {
+    private static final Logger LOGGER = LogManager.getLogger(MemoryBudget.class);
+    private final long capacity;
+    @GuardedBy("this") private long reserved;
+    @GuardedBy("this") private int reservations;
+
+    /**
+     * @param capacity number of bytes which can be reserved at once
+     */
+    MemoryBudget(long capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    private synchronized boolean tryReserve(long bytes) {
+        if (reservations > 0 && reserved + bytes > capacity) {
+            return false;
+        }
+        reserved += bytes;
+        reservations++;
+        return true;
+    }
+
+    private synchronized void release(long bytes) {
+        reserved -= bytes;
+        reservations--;
+        notifyAll();
+    }
+
+    /**
+     * Reserves memory, waiting until it is available.
+     *
+     * @param bytes number of bytes to reserve
+     * @return reservation, which must be closed once the memory is no longer used
+     */
+    @Nonnull
+    Reservation reserve(long bytes) {
+        if (!tryReserve(bytes)) {
+            LOGGER.debug("Waiting for {} bytes of decode budget", bytes);
+            try {
+                ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                    private boolean reserved;
+
+                    @Override
+                    public boolean block() throws InterruptedException {
+                        synchronized (MemoryBudget.this) {
+                            while (!(reserved = tryReserve(bytes))) {
+                                MemoryBudget.this.wait();
+                            }
+                        }
+                        return true;
+                    }
+
+                    @Override
+                    public boolean isReleasable() {
+                        return reserved || (reserved = tryReserve(bytes));
+                    }
+                });
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted waiting for decode budget", e);
+            }
+        }
+        return new Reservation(bytes);
+    }
+
+    /**
+     * Memory reserved from the budget.
+     */
+    final class Reservation implements AutoCloseable {
+        private final long bytes;
+        private boolean closed;
+
+        private Reservation(long bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                release(bytes);
+            }
+        }
+    }
+}
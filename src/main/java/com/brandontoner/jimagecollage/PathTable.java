@@ -0,0 +1,33 @@
+package com.brandontoner.jimagecollage;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Interns the paths of sub images as dense ids from 0, so per sub image state such as usage counts can be kept in
+ * primitive arrays indexed by id. Ids are given out in the order paths are first seen, so they are not stable between
+ * runs, and must not be used to order sub images.
+ */
+@ThreadSafe
+final class PathTable {
+    @Nonnull private final Map<Path, Integer> ids = new ConcurrentHashMap<>();
+    @Nonnull private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * Gets the id of a path, giving it the next id if it hasn't been seen before.
+     */
+    int id(@Nonnull Path path) {
+        return ids.computeIfAbsent(path, ignored -> next.getAndIncrement());
+    }
+
+    /**
+     * Gets the number of ids given out.
+     */
+    int size() {
+        return next.get();
+    }
+}
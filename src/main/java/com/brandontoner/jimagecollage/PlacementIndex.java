@@ -0,0 +1,100 @@
+package com.brandontoner.jimagecollage;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.NotThreadSafe;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Spatial index of where each sub image has been placed, used to keep copies of a sub image a minimum distance apart.
+ * <p>
+ * Placements are kept in square buckets, keyed by sub image and bucket position, with sides as long as the minimum
+ * distance. Any placement closer than the minimum distance is in the same bucket or a neighbouring one, so a check only
+ * looks at 9 buckets, each holding at most a few placements.
+ */
+@NotThreadSafe
+final class PlacementIndex {
+    @Nonnull private final Rectangle[] cells;
+    private final double minimumDistance;
+    @Nonnull private final Map<Bucket, List<Integer>> buckets = new HashMap<>();
+
+    /**
+     * @param cells           blocks of cells covered by each subsection
+     * @param minimumDistance minimum distance between the centers of two placements of the same sub image, in cells
+     */
+    PlacementIndex(@Nonnull Rectangle[] cells, double minimumDistance) {
+        if (!(minimumDistance > 0)) {
+            throw new IllegalArgumentException("Minimum distance must be positive: " + minimumDistance);
+        }
+        this.cells = cells;
+        this.minimumDistance = minimumDistance;
+    }
+
+    private double centerX(int subSection) {
+        Rectangle cell = cells[subSection];
+        return cell.x + cell.width / 2.0;
+    }
+
+    private double centerY(int subSection) {
+        Rectangle cell = cells[subSection];
+        return cell.y + cell.height / 2.0;
+    }
+
+    @Nonnull
+    private Bucket bucket(int subImage, int subSection) {
+        return new Bucket(subImage, (int) Math.floor(centerX(subSection) / minimumDistance),
+                          (int) Math.floor(centerY(subSection) / minimumDistance));
+    }
+
+    /**
+     * Records that a sub image has been placed in a subsection.
+     */
+    void add(int subImage, int subSection) {
+        buckets.computeIfAbsent(bucket(subImage, subSection), ignored -> new ArrayList<>(1)).add(subSection);
+    }
+
+    /**
+     * Records that a sub image has been removed from a subsection.
+     */
+    void remove(int subImage, int subSection) {
+        Bucket bucket = bucket(subImage, subSection);
+        List<Integer> placements = buckets.get(bucket);
+        if (placements != null) {
+            placements.remove((Integer) subSection);
+            if (placements.isEmpty()) {
+                buckets.remove(bucket);
+            }
+        }
+    }
+
+    /**
+     * Checks whether a sub image has been placed closer than the minimum distance to a subsection.
+     */
+    boolean isTooClose(int subImage, int subSection) {
+        Bucket center = bucket(subImage, subSection);
+        double x = centerX(subSection);
+        double y = centerY(subSection);
+        for (int by = center.y - 1; by <= center.y + 1; by++) {
+            for (int bx = center.x - 1; bx <= center.x + 1; bx++) {
+                List<Integer> placements = buckets.get(new Bucket(subImage, bx, by));
+                if (placements == null) {
+                    continue;
+                }
+                for (int placement : placements) {
+                    double dx = centerX(placement) - x;
+                    double dy = centerY(placement) - y;
+                    if (dx * dx + dy * dy < minimumDistance * minimumDistance) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private record Bucket(int subImage, int x, int y) {
+    }
+}
@@ -0,0 +1,236 @@
+package com.brandontoner.jimagecollage;
+
+import javax.annotation.Nonnull;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Computes the L2 diff between images, like {@link L2DiffFunction}, but first compares compact projections of the
+ * images and only computes the exact diff for a shortlist of the closest subsections.
+ * <p>
+ * Images are projected from width * height * 3 channel values down to a few dimensions, either with principal
+ * component analysis (PCA) fitted to the subsections of the master image, or with a random gaussian projection. The
+ * projected subsections are small enough to stay in cache, so finding the shortlist is cheap. Subsections which are
+ * not in the shortlist of a sub image get an infinite cost, so the sub image will only be placed in its shortlist. A
+ * subsection in no shortlist is filled afterwards, by diffing the sub images which can still be used against only the
+ * empty subsections.
+ */
+class ProjectedL2DiffFunction extends DiffFunction<CostDiff> {
+    /** Maximum number of subsections used to fit the PCA. */
+    private static final int PCA_SAMPLES = 512;
+    /** Number of power iterations used to fit the PCA. */
+    private static final int PCA_ITERATIONS = 3;
+    private static final long SEED = 0x5eed;
+
+    private final int dimensions;
+    private final int shortlist;
+    private final boolean pca;
+    @Nonnull private final SubSectionCache<Index> index = new SubSectionCache<>(this::index);
+
+    /**
+     * @param dimensions number of dimensions to project images into
+     * @param shortlist  number of subsections to compute exact diffs for, for each sub image
+     * @param pca        true to fit a PCA to the subsections, false to use a random projection
+     */
+    ProjectedL2DiffFunction(int dimensions, int shortlist, boolean pca) {
+        if (dimensions < 1) {
+            throw new IllegalArgumentException("Dimensions must be positive: " + dimensions);
+        }
+        if (shortlist < 1) {
+            throw new IllegalArgumentException("Shortlist must be positive: " + shortlist);
+        }
+        this.dimensions = dimensions;
+        this.shortlist = shortlist;
+        this.pca = pca;
+    }
+
+    private static double dot(@Nonnull float[] a, @Nonnull float[] b) {
+        double sum = 0;
+        for (int k = 0; k < a.length; k++) {
+            sum += a[k] * b[k];
+        }
+        return sum;
+    }
+
+    /**
+     * Orthonormalizes the rows of a matrix in place with modified Gram-Schmidt.
+     */
+    private static void orthonormalize(@Nonnull float[][] rows) {
+        for (int i = 0; i < rows.length; i++) {
+            float[] row = rows[i];
+            for (int j = 0; j < i; j++) {
+                float[] other = rows[j];
+                float projection = (float) dot(row, other);
+                for (int k = 0; k < row.length; k++) {
+                    row[k] -= projection * other[k];
+                }
+            }
+            double norm = Math.sqrt(dot(row, row));
+            if (norm > 0) {
+                for (int k = 0; k < row.length; k++) {
+                    row[k] /= norm;
+                }
+            }
+        }
+    }
+
+    @Nonnull
+    private static float[][] gaussian(@Nonnull Random random, int rows, int length, double scale) {
+        float[][] output = new float[rows][length];
+        for (float[] row : output) {
+            for (int k = 0; k < length; k++) {
+                row[k] = (float) (random.nextGaussian() * scale);
+            }
+        }
+        return output;
+    }
+
+    /**
+     * Fits the top principal components of the centered samples with subspace iteration, which only needs products
+     * with the sample matrix, never the length * length covariance matrix.
+     */
+    @Nonnull
+    private float[][] principalComponents(@Nonnull float[][] samples, int length) {
+        float[][] basis = gaussian(new Random(SEED), dimensions, length, 1);
+        orthonormalize(basis);
+        for (int iteration = 0; iteration < PCA_ITERATIONS; iteration++) {
+            float[][] current = basis;
+            // projections of every sample onto the current basis
+            double[][] projections = IntStream.range(0, samples.length).parallel().mapToObj(s -> {
+                double[] projection = new double[dimensions];
+                for (int d = 0; d < dimensions; d++) {
+                    projection[d] = dot(samples[s], current[d]);
+                }
+                return projection;
+            }).toArray(double[][]::new);
+            // multiply back by the samples, which multiplies the basis by the covariance
+            basis = IntStream.range(0, dimensions).parallel().mapToObj(d -> {
+                float[] row = new float[length];
+                for (int s = 0; s < samples.length; s++) {
+                    float weight = (float) projections[s][d];
+                    float[] sample = samples[s];
+                    for (int k = 0; k < length; k++) {
+                        row[k] += weight * sample[k];
+                    }
+                }
+                return row;
+            }).toArray(float[][]::new);
+            orthonormalize(basis);
+        }
+        return basis;
+    }
+
+    @Nonnull
+    private Index index(@Nonnull Image[] subSections) {
+        L2DiffFunction.Vectors vectors = new L2DiffFunction.Vectors(subSections);
+        int length = vectors.length;
+        float[] mean = new float[length];
+        float[][] basis;
+        if (pca) {
+            for (float[] vector : vectors.values) {
+                for (int k = 0; k < length; k++) {
+                    mean[k] += vector[k];
+                }
+            }
+            for (int k = 0; k < length; k++) {
+                mean[k] /= vectors.count;
+            }
+            int sampleCount = Math.min(PCA_SAMPLES, vectors.count);
+            float[][] samples = new float[sampleCount][];
+            for (int s = 0; s < sampleCount; s++) {
+                float[] vector = vectors.values[(int) ((long) s * vectors.count / sampleCount)];
+                float[] sample = new float[length];
+                for (int k = 0; k < length; k++) {
+                    sample[k] = vector[k] - mean[k];
+                }
+                samples[s] = sample;
+            }
+            basis = principalComponents(samples, length);
+        } else {
+            // Johnson-Lindenstrauss scaling, so projected distances approximate the original distances
+            basis = gaussian(new Random(SEED), dimensions, length, 1 / Math.sqrt(dimensions));
+        }
+        Index output = new Index(vectors, mean, basis);
+        for (int i = 0; i < vectors.count; i++) {
+            output.projections[i] = output.project(vectors.values[i]);
+        }
+        return output;
+    }
+
+    @Nonnull
+    @Override
+    protected CostDiff diff(@Nonnull Tile tile, @Nonnull Image[] subSections) {
+        Image scaledImage = tile.image();
+        Index index = this.index.get(subSections);
+        L2DiffFunction.Vectors scaled = new L2DiffFunction.Vectors(new Image[]{scaledImage});
+        float[] vector = scaled.values[0];
+        float[] projection = index.project(vector);
+
+        // max heap of the closest subsections by projected distance
+        int count = index.vectors.count;
+        double[] approximate = new double[count];
+        PriorityQueue<Integer> closest =
+                new PriorityQueue<>(shortlist + 1, (a, b) -> Double.compare(approximate[b], approximate[a]));
+        for (int i = 0; i < count; i++) {
+            float[] other = index.projections[i];
+            double distance = 0;
+            for (int d = 0; d < dimensions; d++) {
+                double delta = projection[d] - other[d];
+                distance += delta * delta;
+            }
+            approximate[i] = distance;
+            if (closest.size() < shortlist) {
+                closest.add(i);
+            } else if (distance < approximate[closest.peek()]) {
+                closest.poll();
+                closest.add(i);
+            }
+        }
+
+        double[] costs = new double[count];
+        Arrays.fill(costs, Double.POSITIVE_INFINITY);
+        for (int i : closest) {
+            costs[i] = scaled.norms[0] + index.vectors.norms[i] - 2 * dot(vector, index.vectors.values[i]);
+        }
+        return new CostDiff(tile, costs);
+    }
+
+    @Nonnull
+    @Override
+    String spec() {
+        return (pca ? "pca:" : "randomProjection:") + dimensions + "," + shortlist;
+    }
+
+    /**
+     * Subsections at full resolution, and projected.
+     */
+    private final class Index {
+        @Nonnull private final L2DiffFunction.Vectors vectors;
+        @Nonnull private final float[] mean;
+        @Nonnull private final float[][] basis;
+        @Nonnull private final float[][] projections;
+
+        private Index(@Nonnull L2DiffFunction.Vectors vectors, @Nonnull float[] mean, @Nonnull float[][] basis) {
+            this.vectors = vectors;
+            this.mean = mean;
+            this.basis = basis;
+            projections = new float[vectors.count][];
+        }
+
+        @Nonnull
+        private float[] project(@Nonnull float[] vector) {
+            float[] output = new float[dimensions];
+            for (int d = 0; d < dimensions; d++) {
+                float[] row = basis[d];
+                double sum = 0;
+                for (int k = 0; k < vector.length; k++) {
+                    sum += row[k] * (vector[k] - mean[k]);
+                }
+                output[d] = (float) sum;
+            }
+            return output;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.brandontoner.jimagecollage;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Thrown when a {@link ShardWorker} answers a request with an error, such as for a malformed request or a sub image
+ * which cannot be scored. The worker has read the whole request and written the whole answer, so it is still in step
+ * with the protocol and can handle further requests, unlike a worker whose stream fails or ends.
+ */
+public final class ShardException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @param message error message of the worker
+     */
+    public ShardException(@Nonnull String message) {
+        super(message);
+    }
+}
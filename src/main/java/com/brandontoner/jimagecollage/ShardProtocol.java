@@ -0,0 +1,175 @@
+package com.brandontoner.jimagecollage;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Messages between the coordinator of a sharded collage and its {@link ShardWorker}s.
+ * <p>
+ * A request holds everything a worker needs to score a shard: the diff function and cropping, the subsections being
+ * filled, and the paths of the shard's sub images. The response holds the best candidates of the shard for each
+ * subsection, so its size depends on the number of candidates and subsections, not on the size of the shard.
+ */
+enum ShardProtocol {
+    ;
+
+    /**
+     * Request to score a shard of sub images.
+     *
+     * @param diffFunction       {@link DiffFunction#spec()} of the diff function
+     * @param cropFunction       crop function used to cut a single tile, or null if there are crop variants
+     * @param cropVariantOffsets number of crop offsets per sub image, or 0 for none
+     * @param cropVariantFlips   whether to also use each crop mirrored horizontally
+     * @param candidates         number of candidates to return for each subsection
+     * @param subSections        subsections to score against, all the same size
+     * @param paths              paths of the sub images in the shard
+     */
+    record Request(@Nonnull String diffFunction,
+                   @CheckForNull StandardCropFunction cropFunction,
+                   int cropVariantOffsets,
+                   boolean cropVariantFlips,
+                   int candidates,
+                   @Nonnull Image[] subSections,
+                   @Nonnull List<Path> paths) {
+    }
+
+    /**
+     * Candidate for a subsection.
+     *
+     * @param subSection index of the subsection in the request
+     * @param score      score of the tile in the subsection, lower is better
+     * @param path       index of the sub image's path in the request
+     * @param cropWindow region of the sub image the tile was cut from, or null if it was cut by the crop function
+     */
+    record Candidate(int subSection, double score, int path, @CheckForNull CropWindow cropWindow) {
+    }
+
+    @Nonnull
+    static byte[] encode(@Nonnull Request request) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream output = new DataOutputStream(bytes)) {
+            output.writeUTF(request.diffFunction());
+            StandardCropFunction cropFunction = request.cropFunction();
+            output.writeUTF(cropFunction == null ? "" : cropFunction.name());
+            output.writeInt(request.cropVariantOffsets());
+            output.writeBoolean(request.cropVariantFlips());
+            output.writeInt(request.candidates());
+            Image[] subSections = request.subSections();
+            output.writeInt(subSections.length);
+            output.writeInt(subSections.length == 0 ? 0 : subSections[0].getWidth());
+            output.writeInt(subSections.length == 0 ? 0 : subSections[0].getHeight());
+            for (Image subSection : subSections) {
+                // 3 bytes per pixel, there is no alpha
+                int[] rgbArray = subSection.rgbArray();
+                byte[] rgb = new byte[3 * rgbArray.length];
+                for (int i = 0; i < rgbArray.length; i++) {
+                    rgb[3 * i] = (byte) (rgbArray[i] >> 16);
+                    rgb[3 * i + 1] = (byte) (rgbArray[i] >> 8);
+                    rgb[3 * i + 2] = (byte) rgbArray[i];
+                }
+                output.write(rgb);
+            }
+            output.writeInt(request.paths().size());
+            for (Path path : request.paths()) {
+                output.writeUTF(path.toString());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @throws IllegalArgumentException if the request is malformed
+     */
+    @Nonnull
+    static Request decodeRequest(@Nonnull byte[] bytes) {
+        try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            String diffFunction = input.readUTF();
+            String cropFunction = input.readUTF();
+            int cropVariantOffsets = input.readInt();
+            boolean cropVariantFlips = input.readBoolean();
+            int candidates = input.readInt();
+            Image[] subSections = new Image[input.readInt()];
+            int width = input.readInt();
+            int height = input.readInt();
+            byte[] rgb = new byte[3 * width * height];
+            for (int s = 0; s < subSections.length; s++) {
+                input.readFully(rgb);
+                int[] rgbArray = new int[width * height];
+                for (int i = 0; i < rgbArray.length; i++) {
+                    rgbArray[i] = (rgb[3 * i] & 0xFF) << 16 | (rgb[3 * i + 1] & 0xFF) << 8 | rgb[3 * i + 2] & 0xFF;
+                }
+                subSections[s] = new Image(rgbArray, width, height);
+            }
+            int size = input.readInt();
+            List<Path> paths = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                paths.add(Path.of(input.readUTF()));
+            }
+            return new Request(diffFunction,
+                               cropFunction.isEmpty() ? null : StandardCropFunction.valueOf(cropFunction),
+                               cropVariantOffsets, cropVariantFlips, candidates, subSections, paths);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Malformed request", e);
+        }
+    }
+
+    @Nonnull
+    static byte[] encode(@Nonnull List<Candidate> candidates) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream output = new DataOutputStream(bytes)) {
+            output.writeInt(candidates.size());
+            for (Candidate candidate : candidates) {
+                output.writeInt(candidate.subSection());
+                output.writeDouble(candidate.score());
+                output.writeInt(candidate.path());
+                CropWindow window = candidate.cropWindow();
+                output.writeBoolean(window != null);
+                if (window != null) {
+                    output.writeInt(window.x());
+                    output.writeInt(window.y());
+                    output.writeInt(window.width());
+                    output.writeInt(window.height());
+                    output.writeBoolean(window.flipped());
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @throws IllegalArgumentException if the response is malformed
+     */
+    @Nonnull
+    static List<Candidate> decodeCandidates(@Nonnull byte[] bytes) {
+        try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            int size = input.readInt();
+            List<Candidate> output = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                int subSection = input.readInt();
+                double score = input.readDouble();
+                int path = input.readInt();
+                CropWindow window = input.readBoolean() ? new CropWindow(input.readInt(), input.readInt(),
+                                                                         input.readInt(), input.readInt(),
+                                                                         input.readBoolean())
+                                                        : null;
+                output.add(new Candidate(subSection, score, path, window));
+            }
+            return output;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Malformed response", e);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.brandontoner.jimagecollage;
+
+import javax.annotation.Nonnull;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Sends requests to {@link ShardWorker}s, and gets their responses. Requests and responses are opaque bytes, so a
+ * transport only moves them, and can run workers in local processes, on other hosts, or in the same process.
+ * <p>
+ * Implementations must be thread safe, several requests are sent at once.
+ *
+ * @see LocalProcessTransport
+ */
+public interface ShardTransport extends AutoCloseable {
+    /**
+     * Sends a request to a worker, which handles it with {@link ShardWorker#serve}, or an equivalent.
+     *
+     * @param request request
+     * @return future of the response, which completes exceptionally if the request cannot be sent, or with a
+     *         {@link ShardException} if the worker answers with an error
+     */
+    @Nonnull
+    CompletableFuture<byte[]> send(@Nonnull byte[] request);
+
+    /**
+     * Stops the workers, after waiting for requests which have been sent to be answered.
+     */
+    @Override
+    void close();
+}
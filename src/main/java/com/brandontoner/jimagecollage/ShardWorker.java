@@ -0,0 +1,131 @@
+package com.brandontoner.jimagecollage;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Scores shards of sub images for a coordinator, see {@link ImageCollageBuilder#withShards(ShardTransport, int)}.
+ * <p>
+ * Requests and responses are framed as a 4 byte length followed by the message. A request which fails is answered
+ * with a length of -1 followed by the error message, which transports report as a {@link ShardException}, and the
+ * worker goes on to the next request. Tiles are kept in a cache between requests, so later rounds of a
+ * collage, and later collages with the same subsection size, don't load sub images again.
+ */
+public final class ShardWorker {
+    private ShardWorker() {
+    }
+
+    /**
+     * Serves requests on standard input, and writes responses to standard output, until standard input is closed.
+     * Anything else written to standard output, such as logs, goes to standard error instead.
+     */
+    public static void main(String[] args) throws IOException {
+        OutputStream out = new FileOutputStream(FileDescriptor.out);
+        // must happen before logging is initialized, or logs would be mixed with responses
+        System.setOut(System.err);
+        serve(System.in, out);
+    }
+
+    /**
+     * Serves requests from a stream, until the stream is closed.
+     *
+     * @param in  stream to read requests from
+     * @param out stream to write responses to
+     * @throws IOException if the streams cannot be read or written
+     */
+    public static void serve(@Nonnull InputStream in, @Nonnull OutputStream out) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(in));
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(out));
+        TileCache tileCache = new TileCache(Runtime.getRuntime().maxMemory() / 4);
+        while (true) {
+            byte[] request;
+            try {
+                request = new byte[input.readInt()];
+            } catch (EOFException e) {
+                return;
+            }
+            input.readFully(request);
+            byte[] response;
+            try {
+                response = handle(request, tileCache);
+            } catch (RuntimeException e) {
+                output.writeInt(-1);
+                output.writeUTF(String.valueOf(e));
+                output.flush();
+                continue;
+            }
+            output.writeInt(response.length);
+            output.write(response);
+            output.flush();
+        }
+    }
+
+    /**
+     * Scores a shard, and gets the best candidates for each subsection.
+     *
+     * @param tileCache cache of tiles, or null to always load sub images
+     * @throws IllegalArgumentException if the request is malformed
+     */
+    @Nonnull
+    static byte[] handle(@Nonnull byte[] bytes, @CheckForNull TileCache tileCache) {
+        ShardProtocol.Request request = ShardProtocol.decodeRequest(bytes);
+        Image[] subSections = request.subSections();
+        if (subSections.length == 0) {
+            return ShardProtocol.encode(List.<ShardProtocol.Candidate>of());
+        }
+        DiffFunction<?> diffFunction = DiffFunction.fromSpec(request.diffFunction());
+        CropVariants cropVariants = request.cropVariantOffsets() == 0
+                                    ? null : new CropVariants(request.cropVariantOffsets(),
+                                                              request.cropVariantFlips());
+        // the crop function is only used if there are no crop variants
+        CropFunction cropFunction = Objects.requireNonNullElse(request.cropFunction(),
+                                                               StandardCropFunction.CROP_FROM_MIDDLE);
+        TileLoader tileLoader = new TileLoader(subSections[0].getWidth(), subSections[0].getHeight(), cropFunction,
+                                               cropVariants, new MemoryBudget(Runtime.getRuntime().maxMemory() / 2),
+                                               tileCache, new PathTable());
+        DeterministicAssignment assignment = new DeterministicAssignment(subSections.length, request.candidates());
+        score(diffFunction, subSections, tileLoader, request.paths(), assignment);
+
+        Map<Path, Integer> indices = new HashMap<>();
+        List<Path> paths = request.paths();
+        for (int i = 0; i < paths.size(); i++) {
+            indices.putIfAbsent(paths.get(i), i);
+        }
+        List<ShardProtocol.Candidate> output = new ArrayList<>();
+        for (int i = 0; i < subSections.length; i++) {
+            for (DeterministicAssignment.Candidate candidate : assignment.candidates(i)) {
+                Tile tile = candidate.tile();
+                output.add(new ShardProtocol.Candidate(i, candidate.score(), indices.get(tile.path()),
+                                                       tile.cropWindow()));
+            }
+        }
+        return ShardProtocol.encode(output);
+    }
+
+    private static <T extends SubImagesDiff<T>> void score(@Nonnull DiffFunction<T> diffFunction,
+                                                           @Nonnull Image[] subSections,
+                                                           @Nonnull TileLoader tileLoader,
+                                                           @Nonnull List<Path> paths,
+                                                           @Nonnull DeterministicAssignment assignment) {
+        // only the candidates are kept, not every tile of the shard
+        DiffBatcher<T> batcher = new DiffBatcher<>(diffFunction, subSections, diffs -> diffs.forEach(assignment::add));
+        paths.parallelStream().distinct().forEach(path -> batcher.accept(tileLoader.load(SubImageFile.of(path))));
+        batcher.flush();
+    }
+}
@@ -1,7 +1,6 @@
 package com.brandontoner.jimagecollage;
 
 import javax.annotation.Nonnull;
-import java.nio.file.Path;
 
 /**
  * Compares images using structural similarity (SSIM).
@@ -10,8 +9,9 @@ class SsimDiffFunction extends DiffFunction<SsimDiffFunction.SsimDiff> {
     private static final double k1 = 0.01;
     private static final double k2 = 0.03;
     private static final double L = 255;
-    private static final double c1 = (k1 * L) * (k1 * L);
-    private static final double c2 = (k2 * L) * (k2 * L);
+    /** Stabilizers of the SSIM formula for 8 bit lumas, shared by the other SSIM based diff functions. */
+    static final double c1 = (k1 * L) * (k1 * L);
+    static final double c2 = (k2 * L) * (k2 * L);
 
     /**
      * Computes the variance of an array.
@@ -70,7 +70,8 @@ class SsimDiffFunction extends DiffFunction<SsimDiffFunction.SsimDiff> {
 
     @Nonnull
     @Override
-    protected SsimDiff diff(@Nonnull Path subImage, @Nonnull Image scaledImage, @Nonnull Image[] subSections) {
+    protected SsimDiff diff(@Nonnull Tile tile, @Nonnull Image[] subSections) {
+        Image scaledImage = tile.image();
         float[] lumas = getLumas(scaledImage);
         float average = getAverage(lumas);
         float variance = getVariance(lumas, average);
@@ -78,25 +79,33 @@ class SsimDiffFunction extends DiffFunction<SsimDiffFunction.SsimDiff> {
         for (int i = 0; i < subSections.length; i++) {
             output[i] = ssim(subSections[i], lumas, average, variance);
         }
-        return new SsimDiff(subImage, output);
+        return new SsimDiff(tile, output);
     }
 
-    static final class SsimDiff extends SubImagesDiff<SsimDiff> {
-        @Nonnull private final double[] ssims;
-
-        private SsimDiff(@Nonnull Path path, @Nonnull double[] ssims) {
-            super(path);
-            this.ssims = ssims;
-        }
+    @Nonnull
+    @Override
+    String spec() {
+        return "ssim";
+    }
 
-        @Override
-        public boolean isBetter(int i, @Nonnull SsimDiff other) {
-            return ssims[i] > other.ssims[i];
+    /**
+     * Diff which holds the SSIM in each subsection, higher SSIMs are better, so they are scored negated.
+     */
+    static final class SsimDiff extends SubImagesDiff<SsimDiff> {
+        /**
+         * @param tile  tile the SSIMs are for
+         * @param ssims SSIM in each subsection, which is negated in place
+         */
+        SsimDiff(@Nonnull Tile tile, @Nonnull double[] ssims) {
+            super(tile, negate(ssims));
         }
 
-        @Override
-        public boolean isBetter(int i1, int i2) {
-            return ssims[i1] > ssims[i2];
+        @Nonnull
+        private static double[] negate(@Nonnull double[] ssims) {
+            for (int i = 0; i < ssims.length; i++) {
+                ssims[i] = -ssims[i];
+            }
+            return ssims;
         }
     }
 }
@@ -0,0 +1,37 @@
+package com.brandontoner.jimagecollage;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.awt.image.BufferedImage;
+
+/**
+ * The crop functions provided by {@link CropFunction}. They are singletons, so they can be compared, and named, so
+ * they can be recreated in another process.
+ */
+enum StandardCropFunction implements CropFunction {
+    REJECT_BAD_ASPECT_RATIO {
+        @CheckForNull
+        @Override
+        public BufferedImage crop(@Nonnull BufferedImage input, int width, int height) {
+            double thisAspectRatio = (double) width / height;
+            double thatAspectRatio = (double) input.getWidth() / input.getHeight();
+            double ratio = thatAspectRatio / thisAspectRatio;
+            return 0.95 < ratio && ratio < 1.05 ? input : null;
+        }
+    },
+    CROP_FROM_MIDDLE {
+        @Nonnull
+        @Override
+        public BufferedImage crop(@Nonnull BufferedImage input, int width, int height) {
+            int inWidth = input.getWidth();
+            int inHeight = input.getHeight();
+            if (width * inHeight <= inWidth * height) {
+                int desiredWidth = width * inHeight / height;
+                return input.getSubimage((inWidth - desiredWidth) / 2, 0, desiredWidth, inHeight);
+            } else {
+                int desiredHeight = height * inWidth / width;
+                return input.getSubimage(0, (inHeight - desiredHeight) / 2, inWidth, desiredHeight);
+            }
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.brandontoner.jimagecollage;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+
+/**
+ * A sub image file, along with the attributes read when it was discovered, so it doesn't need to be stat-ed again to
+ * check whether data derived from it is still valid.
+ *
+ * @param path         path of the file
+ * @param size         size of the file in bytes
+ * @param lastModified last modified time of the file
+ */
+record SubImageFile(@Nonnull Path path, long size, @Nonnull FileTime lastModified) {
+    @Nonnull
+    static SubImageFile of(@Nonnull Path path, @Nonnull BasicFileAttributes attributes) {
+        return new SubImageFile(path, attributes.size(), attributes.lastModifiedTime());
+    }
+
+    /**
+     * Reads the attributes of a file.
+     *
+     * @throws UncheckedIOException if the attributes cannot be read
+     */
+    @Nonnull
+    static SubImageFile of(@Nonnull Path path) {
+        try {
+            return of(path, Files.readAttributes(path, BasicFileAttributes.class));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package com.brandontoner.jimagecollage;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.imageio.ImageIO;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Finds image files in directory trees. Directories are listed in parallel, and files are streamed out as soon as they
+ * are found, so processing can start before the scan finishes.
+ * <p>
+ * Files with an extension which {@link ImageIO} can read are accepted without being opened, and files with any other
+ * extension are rejected. Files without an extension are accepted if their first bytes are the signature of a common
+ * image format.
+ */
+enum SubImageScanner {
+    ;
+    private static final Logger LOGGER = LogManager.getLogger(SubImageScanner.class);
+    /** Number of directories listed concurrently, higher than the core count since listing mostly waits on I/O. */
+    private static final int PARALLELISM = 16;
+    /** Marks the end of the scan in the queue. */
+    private static final Object END = new Object();
+    @Nonnull private static final Set<String> EXTENSIONS = Stream.of(ImageIO.getReaderFileSuffixes())
+                                                                 .map(s -> s.toLowerCase(Locale.ROOT))
+                                                                 .collect(Collectors.toUnmodifiableSet());
+    @Nonnull private static final byte[][] SIGNATURES = {
+            {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF}, // JPEG
+            {(byte) 0x89, 'P', 'N', 'G'}, // PNG
+            {'G', 'I', 'F', '8'}, // GIF
+            {'B', 'M'}, // BMP
+            {'I', 'I', '*', 0}, // TIFF, little endian
+            {'M', 'M', 0, '*'}, // TIFF, big endian
+    };
+
+    /**
+     * Scans directories for image files. The scan runs in the background, the returned stream blocks until files are
+     * found, and should be closed to stop the scan early.
+     *
+     * @param directories directories to scan
+     * @return stream of image files
+     */
+    @Nonnull
+    static Stream<SubImageFile> scan(@Nonnull Collection<Path> directories) {
+        BlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+        ForkJoinPool pool = new ForkJoinPool(PARALLELISM);
+        List<DirectoryTask> tasks = new ArrayList<>();
+        for (Path directory : directories) {
+            tasks.add(new DirectoryTask(directory, queue));
+        }
+        pool.execute(() -> {
+            try {
+                RecursiveAction.invokeAll(tasks);
+            } finally {
+                queue.add(END);
+            }
+        });
+
+        return StreamSupport.stream(new QueueSpliterator(queue), false).onClose(pool::shutdownNow);
+    }
+
+    private static boolean isImage(@Nonnull Path path) {
+        String name = path.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        if (dot >= 0) {
+            return EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+        }
+        return hasImageSignature(path);
+    }
+
+    private static boolean hasImageSignature(@Nonnull Path path) {
+        byte[] header = new byte[4];
+        int read;
+        try (InputStream in = Files.newInputStream(path)) {
+            read = in.readNBytes(header, 0, header.length);
+        } catch (IOException e) {
+            LOGGER.warn("Cannot read {}", path, e);
+            return false;
+        }
+        for (byte[] signature : SIGNATURES) {
+            if (read >= signature.length && startsWith(header, signature)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean startsWith(@Nonnull byte[] header, @Nonnull byte[] signature) {
+        for (int i = 0; i < signature.length; i++) {
+            if (header[i] != signature[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Streams files from the queue the scan fills. Parallel streams split off small batches of the files which have
+     * already been found, so each batch is processed as soon as it is split, rather than after thousands of files have
+     * been found, and only the thread holding the rest of the queue waits for the scan. That wait is reported to the
+     * {@link ForkJoinPool} as blocked, so the pool can run the batches in the meantime.
+     */
+    private static final class QueueSpliterator implements Spliterator<SubImageFile> {
+        /** Maximum number of files in a batch split off for another thread. */
+        private static final int BATCH_SIZE = 16;
+        @Nonnull private final BlockingQueue<Object> queue;
+        private boolean done;
+
+        private QueueSpliterator(@Nonnull BlockingQueue<Object> queue) {
+            this.queue = queue;
+        }
+
+        /**
+         * Takes the next file from the queue, waiting until it is found.
+         *
+         * @return file, or null if the scan has finished
+         */
+        @CheckForNull
+        private SubImageFile take() {
+            if (done) {
+                return null;
+            }
+            Object next = queue.poll();
+            if (next == null) {
+                Object[] taken = new Object[1];
+                try {
+                    ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                        @Override
+                        public boolean block() throws InterruptedException {
+                            taken[0] = queue.take();
+                            return true;
+                        }
+
+                        @Override
+                        public boolean isReleasable() {
+                            return taken[0] != null || (taken[0] = queue.poll()) != null;
+                        }
+                    });
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException(e);
+                }
+                next = taken[0];
+            }
+            if (next == END) {
+                done = true;
+                return null;
+            }
+            return (SubImageFile) next;
+        }
+
+        @Override
+        public boolean tryAdvance(@Nonnull Consumer<? super SubImageFile> action) {
+            SubImageFile next = take();
+            if (next == null) {
+                return false;
+            }
+            action.accept(next);
+            return true;
+        }
+
+        @CheckForNull
+        @Override
+        public Spliterator<SubImageFile> trySplit() {
+            SubImageFile first = take();
+            if (first == null) {
+                return null;
+            }
+            List<SubImageFile> batch = new ArrayList<>(BATCH_SIZE);
+            batch.add(first);
+            // only the files which have already been found, without waiting for more
+            while (batch.size() < BATCH_SIZE) {
+                Object next = queue.poll();
+                if (next == null) {
+                    break;
+                }
+                if (next == END) {
+                    done = true;
+                    break;
+                }
+                batch.add((SubImageFile) next);
+            }
+            return batch.spliterator();
+        }
+
+        @Override
+        public long estimateSize() {
+            return done ? 0 : Long.MAX_VALUE;
+        }
+
+        @Override
+        public int characteristics() {
+            return Spliterator.NONNULL;
+        }
+    }
+
+    /**
+     * Lists a directory, forking a task for each subdirectory.
+     */
+    private static final class DirectoryTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        @Nonnull private final Path directory;
+        @Nonnull private final BlockingQueue<Object> queue;
+
+        private DirectoryTask(@Nonnull Path directory, @Nonnull BlockingQueue<Object> queue) {
+            this.directory = directory;
+            this.queue = queue;
+        }
+
+        @Override
+        protected void compute() {
+            List<DirectoryTask> subdirectories = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                for (Path entry : entries) {
+                    visit(entry, subdirectories);
+                }
+            } catch (IOException e) {
+                LOGGER.warn("Cannot list {}", directory, e);
+            }
+            for (DirectoryTask task : subdirectories) {
+                task.join();
+            }
+        }
+
+        private void visit(@Nonnull Path entry, @Nonnull List<DirectoryTask> subdirectories) {
+            try {
+                BasicFileAttributes attributes =
+                        Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                if (attributes.isSymbolicLink()) {
+                    // follow links to files, but not to directories, same as Files.walk
+                    attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+                    if (attributes.isDirectory()) {
+                        return;
+                    }
+                }
+                if (attributes.isDirectory()) {
+                    DirectoryTask task = new DirectoryTask(entry, queue);
+                    task.fork();
+                    subdirectories.add(task);
+                } else if (attributes.isRegularFile() && isImage(entry)) {
+                    queue.add(SubImageFile.of(entry, attributes));
+                }
+            } catch (IOException e) {
+                LOGGER.warn("Cannot read attributes of {}", entry, e);
+            }
+        }
+    }
+}
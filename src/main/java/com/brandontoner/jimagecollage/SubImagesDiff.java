@@ -1,36 +1,74 @@
 package com.brandontoner.jimagecollage;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import java.nio.file.Path;
 import java.util.Objects;
-import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Scores of a tile in each subsection of the master image. Scores are kept in a primitive array, lower is better, so
+ * placing diffs only reads doubles and never calls back into the diff.
+ *
+ * @param <T> diff result type
+ */
 abstract class SubImagesDiff<T extends SubImagesDiff<T>> {
-    @Nonnull private final AtomicInteger usages = new AtomicInteger(0);
-    @Nonnull private final Path path;
+    @Nonnull private final Tile tile;
+    @Nonnull private final double[] scores;
 
-    SubImagesDiff(@Nonnull Path path) {
-        this.path = Objects.requireNonNull(path);
+    /**
+     * @param tile   tile the scores are for
+     * @param scores score in each subsection, lower is better
+     */
+    SubImagesDiff(@Nonnull Tile tile, @Nonnull double[] scores) {
+        this.tile = Objects.requireNonNull(tile);
+        this.scores = Objects.requireNonNull(scores);
     }
 
-    abstract boolean isBetter(int i, @Nonnull T other);
+    /**
+     * Gets the score of this tile in a subsection, lower is better.
+     */
+    final double score(int i) {
+        return scores[i];
+    }
 
-    abstract boolean isBetter(int i1, int i2);
+    /**
+     * Gets the score of this tile in each subsection, lower is better. The array must not be modified.
+     */
+    @Nonnull
+    final double[] scores() {
+        return scores;
+    }
+
+    @Nonnull
+    Tile tile() {
+        return tile;
+    }
 
     @Nonnull
     Path path() {
-        return path;
+        return tile.path();
     }
 
-    int getUsages() {
-        return usages.get();
+    /**
+     * Gets the id of the sub image this diff is for, shared by all tiles of the same sub image.
+     */
+    int subImage() {
+        return tile.subImage();
     }
 
-    void incrementUsages() {
-        usages.incrementAndGet();
+    /**
+     * Gets the tile this diff is for, scaled to the size of the subsections.
+     */
+    @Nonnull
+    Image image() {
+        return tile.image();
     }
 
-    void decrementUsages() {
-        usages.decrementAndGet();
+    /**
+     * Gets the region of the sub image this diff is for, or null if the region is chosen by the crop function.
+     */
+    @CheckForNull
+    CropWindow cropWindow() {
+        return tile.cropWindow();
     }
 }
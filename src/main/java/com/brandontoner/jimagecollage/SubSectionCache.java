@@ -0,0 +1,39 @@
+package com.brandontoner.jimagecollage;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Objects;
+import java.util.function.Function;
+
+/**
+ * Lazily computes data derived from the subsections of a master image, so that diff functions only do that work once
+ * rather than once per sub image.
+ *
+ * @param <F> type of the derived data
+ */
+@ThreadSafe
+final class SubSectionCache<F> {
+    @Nonnull private final Function<Image[], F> loader;
+    @CheckForNull private Image[] key;
+    @CheckForNull private F value;
+
+    SubSectionCache(@Nonnull Function<Image[], F> loader) {
+        this.loader = Objects.requireNonNull(loader);
+    }
+
+    /**
+     * Gets the data derived from the given subsections, computing it if these subsections have not been seen before.
+     *
+     * @param subSections subsections of the master image
+     * @return derived data
+     */
+    @Nonnull
+    synchronized F get(@Nonnull Image[] subSections) {
+        if (key != subSections) {
+            value = Objects.requireNonNull(loader.apply(subSections));
+            key = subSections;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,156 @@
+package com.brandontoner.jimagecollage;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Divides the master image into subsections. The image is divided into a grid of equal cells, and each subsection
+ * covers a square block of cells, 1x1 for a uniform grid.
+ * <p>
+ * The adaptive layout starts from a coarse grid and recursively splits each subsection into four while its luma
+ * variance is above a threshold, so flat areas use a few large subsections and detailed areas use many small ones.
+ * Every subsection is compared at the size of one cell: a subsection covering 2^k x 2^k cells is taken from level k of
+ * a mip pyramid of the master image, so sub images only need to be diffed at one size whatever the layout.
+ */
+@Immutable
+final class SubSectionLayout {
+    @Nonnull private final Rectangle[] cells;
+    @Nonnull private final Image[] subSections;
+    private final int gridWidth;
+    private final int gridHeight;
+    private final int cellWidth;
+    private final int cellHeight;
+
+    private SubSectionLayout(@Nonnull Rectangle[] cells, @Nonnull Image[] subSections, int gridWidth, int gridHeight,
+                             int cellWidth, int cellHeight) {
+        this.cells = cells;
+        this.subSections = subSections;
+        this.gridWidth = gridWidth;
+        this.gridHeight = gridHeight;
+        this.cellWidth = cellWidth;
+        this.cellHeight = cellHeight;
+    }
+
+    /**
+     * Divides an image into subsections.
+     *
+     * @param image             master image
+     * @param subSectionsX      number of horizontal subsections in the coarsest grid
+     * @param subSectionsY      number of vertical subsections in the coarsest grid
+     * @param maxDepth          number of times a subsection may be split into four, 0 for a uniform grid
+     * @param varianceThreshold luma variance above which a subsection is split
+     * @return layout
+     */
+    @Nonnull
+    static SubSectionLayout create(@Nonnull Image image, int subSectionsX, int subSectionsY, int maxDepth,
+                                   double varianceThreshold) {
+        int gridWidth = subSectionsX << maxDepth;
+        int gridHeight = subSectionsY << maxDepth;
+        int cellWidth = image.getWidth() / gridWidth;
+        int cellHeight = image.getHeight() / gridHeight;
+        if (cellWidth == 0 || cellHeight == 0) {
+            throw new IllegalArgumentException("Master image is too small for " + gridWidth + "x" + gridHeight
+                                               + " cells");
+        }
+
+        // mip pyramid, level k has cells of cellWidth x cellHeight covering 2^k x 2^k cells of level 0
+        Image[] levels = new Image[maxDepth + 1];
+        levels[0] = image.subImage(0, 0, gridWidth * cellWidth, gridHeight * cellHeight);
+        for (int level = 1; level <= maxDepth; level++) {
+            levels[level] = levels[level - 1].downsample2x();
+        }
+
+        List<Rectangle> cells = new ArrayList<>();
+        List<Image> subSections = new ArrayList<>();
+        int rootSize = 1 << maxDepth;
+        for (int y = 0; y < subSectionsY; ++y) {
+            for (int x = 0; x < subSectionsX; ++x) {
+                split(levels, maxDepth, x * rootSize, y * rootSize, cellWidth, cellHeight, varianceThreshold, cells,
+                      subSections);
+            }
+        }
+        return new SubSectionLayout(cells.toArray(new Rectangle[0]), subSections.toArray(new Image[0]), gridWidth,
+                                    gridHeight, cellWidth, cellHeight);
+    }
+
+    private static void split(@Nonnull Image[] levels, int level, int x, int y, int cellWidth, int cellHeight,
+                              double varianceThreshold, @Nonnull List<Rectangle> cells,
+                              @Nonnull List<Image> subSections) {
+        int size = 1 << level;
+        if (level > 0 && lumaVariance(levels[0], x * cellWidth, y * cellHeight, size * cellWidth,
+                                      size * cellHeight) > varianceThreshold) {
+            int half = size / 2;
+            for (int dy = 0; dy < size; dy += half) {
+                for (int dx = 0; dx < size; dx += half) {
+                    split(levels, level - 1, x + dx, y + dy, cellWidth, cellHeight, varianceThreshold, cells,
+                          subSections);
+                }
+            }
+            return;
+        }
+        cells.add(new Rectangle(x, y, size, size));
+        subSections.add(levels[level].subImage((x >> level) * cellWidth, (y >> level) * cellHeight, cellWidth,
+                                               cellHeight));
+    }
+
+    private static double lumaVariance(@Nonnull Image image, int xOffset, int yOffset, int width, int height) {
+        int[] rgbArray = image.rgbArray();
+        double sum = 0;
+        double sumOfSquares = 0;
+        for (int y = yOffset; y < yOffset + height; ++y) {
+            for (int x = xOffset; x < xOffset + width; ++x) {
+                int rgb = rgbArray[y * image.getWidth() + x];
+                int r = (0x00ff0000 & rgb) >>> 16;
+                int g = (0x0000ff00 & rgb) >>> 8;
+                int b = (0x000000ff & rgb);
+                double luma = 0.2126 * r + 0.7152 * g + 0.0722 * b;
+                sum += luma;
+                sumOfSquares += luma * luma;
+            }
+        }
+        double count = (double) width * height;
+        double average = sum / count;
+        return sumOfSquares / count - average * average;
+    }
+
+    /**
+     * Gets the blocks of cells covered by each subsection, in the same order as the subsections.
+     */
+    @Nonnull
+    Rectangle[] cells() {
+        return cells;
+    }
+
+    /**
+     * Gets the subsections, each scaled to the size of one cell.
+     */
+    @Nonnull
+    Image[] subSections() {
+        return subSections;
+    }
+
+    /**
+     * Gets the width of the master image in cells.
+     */
+    int gridWidth() {
+        return gridWidth;
+    }
+
+    /**
+     * Gets the height of the master image in cells.
+     */
+    int gridHeight() {
+        return gridHeight;
+    }
+
+    int cellWidth() {
+        return cellWidth;
+    }
+
+    int cellHeight() {
+        return cellHeight;
+    }
+}
@@ -0,0 +1,49 @@
+package com.brandontoner.jimagecollage;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.nio.file.Path;
+import java.util.Objects;
+
+/**
+ * A candidate for the subsections of the master image: a sub image which has been cropped and scaled to the size of
+ * the subsections. Several tiles can be cut from one sub image, those share one sub image id, and so one usage count.
+ */
+final class Tile {
+    @Nonnull private final Path path;
+    private final int subImage;
+    @Nonnull private final Image image;
+    @CheckForNull private final CropWindow cropWindow;
+
+    /**
+     * @param path       path of the sub image
+     * @param subImage   id of the sub image in the {@link PathTable}
+     * @param image      tile, scaled to the size of the subsections
+     * @param cropWindow region of the sub image the tile was cut from, or null if it was cut by the crop function
+     */
+    Tile(@Nonnull Path path, int subImage, @Nonnull Image image, @CheckForNull CropWindow cropWindow) {
+        this.path = Objects.requireNonNull(path);
+        this.subImage = subImage;
+        this.image = Objects.requireNonNull(image);
+        this.cropWindow = cropWindow;
+    }
+
+    @Nonnull
+    Path path() {
+        return path;
+    }
+
+    int subImage() {
+        return subImage;
+    }
+
+    @Nonnull
+    Image image() {
+        return image;
+    }
+
+    @CheckForNull
+    CropWindow cropWindow() {
+        return cropWindow;
+    }
+}
@@ -0,0 +1,105 @@
+package com.brandontoner.jimagecollage;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Keeps sub images which have been cropped and scaled, so collages which use the same library and subsection size
+ * don't need to load them again. Share one cache between collages with
+ * {@link ImageCollageBuilder#withTileCache(TileCache)}.
+ * <p>
+ * Entries are keyed by the file's path, size and last modified time, so a file which changed is loaded again, and by
+ * the tile size and how the tiles were cut. Crop functions are compared with equals, so the same crop function instance
+ * should be used to share entries. The least recently used entries are evicted once the cache is over its capacity.
+ */
+@ThreadSafe
+public final class TileCache {
+    private final long capacity;
+    @GuardedBy("this") private final LinkedHashMap<Key, List<Entry>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    @GuardedBy("this") private long size;
+
+    /**
+     * Creates a cache.
+     *
+     * @param capacity maximum bytes of tile pixels to keep
+     * @throws IllegalArgumentException if capacity is not positive
+     */
+    public TileCache(long capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    private static long bytes(@Nonnull List<Entry> value) {
+        long bytes = 0;
+        for (Entry entry : value) {
+            bytes += (long) Integer.BYTES * entry.image().rgbArray().length;
+        }
+        return bytes;
+    }
+
+    /**
+     * Gets the number of sub images in the cache.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Gets the bytes of tile pixels in the cache.
+     */
+    public synchronized long bytes() {
+        return size;
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    @CheckForNull
+    synchronized List<Entry> get(@Nonnull Key key) {
+        return entries.get(key);
+    }
+
+    synchronized void put(@Nonnull Key key, @Nonnull List<Entry> value) {
+        List<Entry> old = entries.put(key, List.copyOf(value));
+        if (old != null) {
+            size -= bytes(old);
+        }
+        size += bytes(value);
+        Iterator<List<Entry>> iterator = entries.values().iterator();
+        while (size > capacity && iterator.hasNext()) {
+            size -= bytes(iterator.next());
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Identifies a version of a sub image, and how it was cut into tiles.
+     */
+    record Key(@Nonnull Path path, long fileSize, @Nonnull FileTime lastModified, int width, int height,
+               @Nonnull Object cropping) {
+        @Nonnull
+        static Key of(@Nonnull SubImageFile file, int width, int height, @Nonnull Object cropping) {
+            return new Key(file.path(), file.size(), file.lastModified(), width, height, cropping);
+        }
+    }
+
+    /**
+     * A tile cut from a sub image. Usage counts aren't cached, each collage counts its own usages.
+     */
+    record Entry(@Nonnull Image image, @CheckForNull CropWindow cropWindow) {
+    }
+}
@@ -0,0 +1,115 @@
+package com.brandontoner.jimagecollage;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import java.awt.image.BufferedImage;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Loads sub images, and cuts them into tiles the size of the subsections of the master image.
+ */
+@ThreadSafe
+final class TileLoader {
+    private static final Logger LOGGER = LogManager.getLogger(TileLoader.class);
+    private final int width;
+    private final int height;
+    @Nonnull private final CropFunction cropFunction;
+    @CheckForNull private final CropVariants cropVariants;
+    @Nonnull private final MemoryBudget memoryBudget;
+    @CheckForNull private final TileCache tileCache;
+    @Nonnull private final PathTable pathTable;
+
+    /**
+     * @param width        width of a subsection
+     * @param height       height of a subsection
+     * @param cropFunction crop function used to cut a single tile, if there are no crop variants
+     * @param cropVariants variants to cut from each sub image, or null to cut a single tile with the crop function
+     * @param memoryBudget budget which each loaded image is reserved from until it has been scaled
+     * @param tileCache    cache of tiles, or null to always load sub images
+     * @param pathTable    table which gives each sub image its id
+     */
+    TileLoader(int width, int height, @Nonnull CropFunction cropFunction, @CheckForNull CropVariants cropVariants,
+               @Nonnull MemoryBudget memoryBudget, @CheckForNull TileCache tileCache, @Nonnull PathTable pathTable) {
+        this.width = width;
+        this.height = height;
+        this.cropFunction = Objects.requireNonNull(cropFunction);
+        this.cropVariants = cropVariants;
+        this.memoryBudget = Objects.requireNonNull(memoryBudget);
+        this.tileCache = tileCache;
+        this.pathTable = Objects.requireNonNull(pathTable);
+    }
+
+    /**
+     * Gets the tiles of a sub image, from the cache if possible.
+     *
+     * @return tiles, all sharing one sub image id, which are empty if the image cannot be loaded or cropped, or has
+     *         been deleted since it was listed
+     */
+    @Nonnull
+    List<Tile> load(@Nonnull SubImageFile file) {
+        try {
+            if (tileCache == null) {
+                return toTiles(file.path(), load(file.path()));
+            }
+            TileCache.Key key =
+                    TileCache.Key.of(file, width, height, cropVariants == null ? cropFunction : cropVariants);
+            List<TileCache.Entry> entries = tileCache.get(key);
+            if (entries == null) {
+                entries = load(file.path());
+                tileCache.put(key, entries);
+            }
+            return toTiles(file.path(), entries);
+        } catch (UncheckedIOException e) {
+            if (Files.exists(file.path())) {
+                throw e;
+            }
+            LOGGER.warn("Skipping {}, it has been deleted", file.path());
+            return List.of();
+        }
+    }
+
+    @Nonnull
+    private List<Tile> toTiles(@Nonnull Path path, @Nonnull List<TileCache.Entry> entries) {
+        if (entries.isEmpty()) {
+            return List.of();
+        }
+        int subImage = pathTable.id(path);
+        List<Tile> output = new ArrayList<>(entries.size());
+        for (TileCache.Entry entry : entries) {
+            output.add(new Tile(path, subImage, entry.image(), entry.cropWindow()));
+        }
+        return output;
+    }
+
+    @Nonnull
+    // the reservation is only held while decoding, never referenced
+    @SuppressWarnings("try")
+    private List<TileCache.Entry> load(@Nonnull Path subImage) {
+        try (MemoryBudget.Reservation ignored = memoryBudget.reserve(ImageUtils.estimateLoadedSize(subImage))) {
+            BufferedImage bi = ImageUtils.read(subImage);
+            if (bi == null) {
+                LOGGER.error("Cannot load {}", subImage);
+                return List.of();
+            }
+            if (cropVariants != null) {
+                return cropVariants.tiles(bi, width, height);
+            }
+            bi = cropFunction.crop(bi, width, height);
+            if (bi == null) {
+                LOGGER.warn("File {} has bad aspect ratio", subImage);
+                return List.of();
+            }
+
+            return List.of(new TileCache.Entry(BoxScaler.scale(bi, width, height), null));
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.brandontoner.jimagecollage;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Compares images using the mean structural similarity (SSIM) of square windows, rather than a single SSIM over the
+ * whole image. Windows overlap by half of their size.
+ * <p>
+ * The mean and variance of each window are computed once per image from integral images (summed area tables) of the
+ * luma and luma squared, so each window costs O(1). Only the covariance depends on both images, that is computed from
+ * an integral image of the product of the lumas, which costs one pass over the pixels per pair of images.
+ */
+class WindowedSsimDiffFunction extends DiffFunction<SsimDiffFunction.SsimDiff> {
+    private final int windowSize;
+    @Nonnull private final SubSectionCache<Windows[]> subSectionWindows = new SubSectionCache<>(this::windows);
+
+    WindowedSsimDiffFunction(int windowSize) {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("Window size must be positive: " + windowSize);
+        }
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * Computes an integral image, each element (x, y) is the sum of all values above and to the left of (x, y),
+     * exclusive. The output has dimensions (width + 1) * (height + 1).
+     */
+    private static void integral(@Nonnull float[] a, int width, int height, @Nonnull double[] output) {
+        int stride = width + 1;
+        for (int y = 0; y < height; ++y) {
+            double rowSum = 0;
+            int row = y * width;
+            int outRow = (y + 1) * stride;
+            for (int x = 0; x < width; ++x) {
+                rowSum += a[row + x];
+                output[outRow + x + 1] = output[outRow - stride + x + 1] + rowSum;
+            }
+        }
+    }
+
+    /**
+     * Computes the integral image of the element-wise product of two arrays.
+     *
+     * @see WindowedSsimDiffFunction#integral(float[], int, int, double[])
+     */
+    private static void productIntegral(@Nonnull float[] a, @Nonnull float[] b, int width, int height,
+                                        @Nonnull double[] output) {
+        int stride = width + 1;
+        for (int y = 0; y < height; ++y) {
+            double rowSum = 0;
+            int row = y * width;
+            int outRow = (y + 1) * stride;
+            for (int x = 0; x < width; ++x) {
+                rowSum += (double) a[row + x] * b[row + x];
+                output[outRow + x + 1] = output[outRow - stride + x + 1] + rowSum;
+            }
+        }
+    }
+
+    private static double windowSum(@Nonnull double[] integral, int stride, int x, int y, int size) {
+        return integral[(y + size) * stride + x + size] - integral[y * stride + x + size]
+               - integral[(y + size) * stride + x] + integral[y * stride + x];
+    }
+
+    @Nonnull
+    private static float[] getLumas(@Nonnull Image image) {
+        int[] rgbArray = image.rgbArray();
+        float[] lumas = new float[rgbArray.length];
+        for (int i = 0; i < rgbArray.length; i++) {
+            int rgb = rgbArray[i];
+            int r = (0x00ff0000 & rgb) >>> 16;
+            int g = (0x0000ff00 & rgb) >>> 8;
+            int b = (0x000000ff & rgb);
+            lumas[i] = 0.2126f * r + 0.7152f * g + 0.0722f * b;
+        }
+        return lumas;
+    }
+
+    @Nonnull
+    private Windows[] windows(@Nonnull Image[] images) {
+        Windows[] output = new Windows[images.length];
+        for (int i = 0; i < images.length; i++) {
+            output[i] = new Windows(images[i]);
+        }
+        return output;
+    }
+
+    private double ssim(@Nonnull Windows a, @Nonnull Windows b, @Nonnull double[] crossIntegral) {
+        productIntegral(a.lumas, b.lumas, a.width, a.height, crossIntegral);
+        int stride = a.width + 1;
+        int size = a.size;
+        double area = (double) size * size;
+        double sum = 0;
+        int w = 0;
+        for (int y = 0; y + size <= a.height; y += a.step) {
+            for (int x = 0; x + size <= a.width; x += a.step, ++w) {
+                double averageA = a.averages[w];
+                double averageB = b.averages[w];
+                double covariance = windowSum(crossIntegral, stride, x, y, size) / area - averageA * averageB;
+                sum += (2 * averageA * averageB + SsimDiffFunction.c1) * (2 * covariance + SsimDiffFunction.c2)
+                       / ((averageA * averageA + averageB * averageB + SsimDiffFunction.c1)
+                          * (a.variances[w] + b.variances[w] + SsimDiffFunction.c2));
+            }
+        }
+        return sum / w;
+    }
+
+    @Nonnull
+    @Override
+    protected SsimDiffFunction.SsimDiff diff(@Nonnull Tile tile, @Nonnull Image[] subSections) {
+        Image scaledImage = tile.image();
+        Windows[] windows = subSectionWindows.get(subSections);
+        Windows scaled = new Windows(scaledImage);
+        double[] crossIntegral = new double[(scaled.width + 1) * (scaled.height + 1)];
+        double[] output = new double[subSections.length];
+        for (int i = 0; i < subSections.length; i++) {
+            output[i] = ssim(windows[i], scaled, crossIntegral);
+        }
+        return new SsimDiffFunction.SsimDiff(tile, output);
+    }
+
+    @Nonnull
+    @Override
+    String spec() {
+        return "windowedSsim:" + windowSize;
+    }
+
+    /**
+     * Lumas of an image, and the average and variance of the luma of each window.
+     */
+    private final class Windows {
+        @Nonnull private final float[] lumas;
+        @Nonnull private final double[] averages;
+        @Nonnull private final double[] variances;
+        private final int width;
+        private final int height;
+        private final int size;
+        private final int step;
+
+        private Windows(@Nonnull Image image) {
+            width = image.getWidth();
+            height = image.getHeight();
+            size = Math.min(windowSize, Math.min(width, height));
+            step = Math.max(1, size / 2);
+            lumas = getLumas(image);
+
+            int stride = width + 1;
+            double[] sums = new double[stride * (height + 1)];
+            double[] squares = new double[stride * (height + 1)];
+            integral(lumas, width, height, sums);
+            productIntegral(lumas, lumas, width, height, squares);
+
+            int count = ((width - size) / step + 1) * ((height - size) / step + 1);
+            averages = new double[count];
+            variances = new double[count];
+            double area = (double) size * size;
+            int w = 0;
+            for (int y = 0; y + size <= height; y += step) {
+                for (int x = 0; x + size <= width; x += step, ++w) {
+                    double average = windowSum(sums, stride, x, y, size) / area;
+                    averages[w] = average;
+                    variances[w] = Math.max(0, windowSum(squares, stride, x, y, size) / area - average * average);
+                }
+            }
+        }
+    }
+}
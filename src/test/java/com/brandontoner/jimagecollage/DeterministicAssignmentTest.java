@@ -0,0 +1,120 @@
+package com.brandontoner.jimagecollage;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class DeterministicAssignmentTest {
+    private static final int SUB_SECTIONS = 64;
+    private static final int SUB_IMAGES = 40;
+
+    @TempDir Path directory;
+
+    @Test
+    void candidatesDontDependOnThreadsOrOrder() {
+        List<CostDiff> diffs = diffs();
+        List<List<DeterministicAssignment.Candidate>> expected = candidates(diffs, 1);
+        for (int seed = 0; seed < 4; seed++) {
+            List<CostDiff> shuffled = new ArrayList<>(diffs);
+            Collections.shuffle(shuffled, new Random(seed));
+            for (int threads : new int[] {1, 2, 8}) {
+                assertEquals(expected, candidates(shuffled, threads), "seed " + seed + ", threads " + threads);
+            }
+        }
+    }
+
+    @Test
+    void collageIsByteIdenticalAcrossThreadsAndOrder() throws IOException {
+        write("target.png", 128, 128, new Random(1));
+        Files.createDirectory(directory.resolve("library"));
+        List<Path> subImages = new ArrayList<>();
+        Random random = new Random(2);
+        for (int i = 0; i < SUB_IMAGES; i++) {
+            subImages.add(write("library/" + i + ".png", 32, 32, random));
+        }
+        byte[] expected = collage(subImages, 1);
+        for (int seed = 0; seed < 3; seed++) {
+            List<Path> shuffled = new ArrayList<>(subImages);
+            Collections.shuffle(shuffled, new Random(seed));
+            for (int threads : new int[] {1, 4, 8}) {
+                assertArrayEquals(expected, collage(shuffled, threads), "seed " + seed + ", threads " + threads);
+            }
+        }
+    }
+
+    /**
+     * Diffs of sub images with few distinct scores, so most candidates are only ordered by path and crop window.
+     */
+    private static List<CostDiff> diffs() {
+        Image image = new Image(new int[4], 2, 2);
+        Random random = new Random(0);
+        List<CostDiff> diffs = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            double[] scores = random.ints(SUB_SECTIONS, 0, 4).asDoubleStream().toArray();
+            Path path = Path.of("sub" + i / 4 + ".jpg");
+            CropWindow cropWindow = new CropWindow(i % 4, 0, 2, 2, i % 2 == 0);
+            diffs.add(new CostDiff(new Tile(path, i / 4, image, cropWindow), scores));
+        }
+        return diffs;
+    }
+
+    private static List<List<DeterministicAssignment.Candidate>> candidates(List<CostDiff> diffs, int threads) {
+        DeterministicAssignment assignment = new DeterministicAssignment(SUB_SECTIONS, 3);
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.submit(() -> diffs.parallelStream().forEach(assignment::add)).join();
+        } finally {
+            pool.shutdown();
+        }
+        return IntStream.range(0, SUB_SECTIONS).mapToObj(assignment::candidates).toList();
+    }
+
+    private byte[] collage(List<Path> subImages, int threads) throws IOException {
+        Path output = Files.createTempDirectory(directory, "output");
+        ImageCollageBuilder builder = ImageCollage.builder()
+                                                  .withTargetImage(directory.resolve("target.png"))
+                                                  .withSubSections(8)
+                                                  .withUsagePerImage(2)
+                                                  .withDeterministicAssignment(4)
+                                                  .withOutputDirectory(output);
+        for (Path subImage : subImages) {
+            builder.withSubImage(subImage);
+        }
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            return Files.readAllBytes(builder.withExecutor(pool).build().start().join());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Writes an image of a few large blocks of random colors.
+     */
+    private Path write(String name, int width, int height, Random random) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] colors = random.ints(4, 0, 1 << 24).toArray();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, colors[(y * 2 / height) * 2 + x * 2 / width]);
+            }
+        }
+        Path path = directory.resolve(name);
+        ImageIO.write(image, "png", path.toFile());
+        return path;
+    }
+}
@@ -0,0 +1,168 @@
+package com.brandontoner.jimagecollage;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.annotation.Nonnull;
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ShardWorkerTest {
+    @TempDir Path directory;
+    private PipedTransport transport;
+
+    @BeforeEach
+    void startWorker() throws IOException {
+        transport = new PipedTransport();
+    }
+
+    @AfterEach
+    void stopWorker() {
+        transport.close();
+    }
+
+    @Test
+    void shardedCollageEqualsLocalDeterministicCollage() throws IOException {
+        Path target = write("target.png", 128, 128, new Random(1));
+        List<Path> subImages = new ArrayList<>();
+        Random random = new Random(2);
+        for (int i = 0; i < 40; i++) {
+            subImages.add(write(i + ".png", 32, 32, random));
+        }
+        byte[] local = collage(target, subImages, builder -> builder.withDeterministicAssignment(16));
+        byte[] sharded = collage(target, subImages, builder -> builder.withShards(transport, 3));
+        assertArrayEquals(local, sharded);
+    }
+
+    @Test
+    void workerAnswersRequestsAfterAnError() throws IOException {
+        CompletionException failure =
+                assertThrows(CompletionException.class, () -> transport.send(new byte[] {1, 2, 3}).join());
+        assertInstanceOf(ShardException.class, failure.getCause());
+
+        Image subSection = new Image(new BufferedImage(8, 8, BufferedImage.TYPE_INT_RGB));
+        ShardProtocol.Request request =
+                new ShardProtocol.Request(DiffFunction.absRgb().spec(), StandardCropFunction.CROP_FROM_MIDDLE, 0,
+                                          false, 4, new Image[] {subSection},
+                                          List.of(write("sub.png", 16, 16, new Random(3))));
+        byte[] response = transport.send(ShardProtocol.encode(request)).join();
+        assertArrayEquals(ShardWorker.handle(ShardProtocol.encode(request), null), response);
+    }
+
+    private byte[] collage(Path target, List<Path> subImages, BuilderOption option) throws IOException {
+        ImageCollageBuilder builder = ImageCollage.builder()
+                                                  .withTargetImage(target)
+                                                  .withSubSections(8)
+                                                  .withUsagePerImage(2)
+                                                  .withOutputDirectory(
+                                                          Files.createTempDirectory(directory, "output"));
+        for (Path subImage : subImages) {
+            builder.withSubImage(subImage);
+        }
+        return Files.readAllBytes(option.apply(builder).build().start().join());
+    }
+
+    /**
+     * Writes an image of a few large blocks of random colors.
+     */
+    private Path write(String name, int width, int height, Random random) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] colors = random.ints(4, 0, 1 << 24).toArray();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, colors[(y * 2 / height) * 2 + x * 2 / width]);
+            }
+        }
+        Path path = directory.resolve(name);
+        ImageIO.write(image, "png", path.toFile());
+        return path;
+    }
+
+    private interface BuilderOption {
+        ImageCollageBuilder apply(ImageCollageBuilder builder);
+    }
+
+    /**
+     * Talks to one {@link ShardWorker#serve} loop in this process over pipes, framing requests the same way as
+     * {@link LocalProcessTransport}. Requests are sent from one thread, since pipes fail once a thread which wrote to
+     * them has exited.
+     */
+    private static final class PipedTransport implements ShardTransport {
+        @Nonnull private final DataOutputStream input;
+        @Nonnull private final DataInputStream output;
+        @Nonnull private final Thread worker;
+        @Nonnull private final ExecutorService sender = Executors.newSingleThreadExecutor();
+
+        private PipedTransport() throws IOException {
+            PipedInputStream workerInput = new PipedInputStream(1 << 16);
+            PipedOutputStream workerOutput = new PipedOutputStream();
+            input = new DataOutputStream(new PipedOutputStream(workerInput));
+            output = new DataInputStream(new PipedInputStream(workerOutput, 1 << 16));
+            worker = new Thread(() -> {
+                try (workerOutput) {
+                    ShardWorker.serve(workerInput, workerOutput);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, "ShardWorkerTest-worker");
+            worker.start();
+        }
+
+        @Nonnull
+        @Override
+        public CompletableFuture<byte[]> send(@Nonnull byte[] request) {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    input.writeInt(request.length);
+                    input.write(request);
+                    input.flush();
+                    int length = output.readInt();
+                    if (length < 0) {
+                        throw new ShardException(output.readUTF());
+                    }
+                    byte[] response = new byte[length];
+                    output.readFully(response);
+                    return response;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, sender);
+        }
+
+        @Override
+        public void close() {
+            sender.shutdown();
+            try {
+                sender.awaitTermination(1, TimeUnit.MINUTES);
+                input.close();
+                worker.join();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}